@@ -0,0 +1,61 @@
+package org.cattech.WMR88Interface;
+
+/**
+ * An alert raised or cleared by an AlertRule for one sensor.
+ */
+public class Alert {
+	private final AlertRule rule;
+	private final DeviceParameters sensor;
+	private final int channel;
+	private final String value;
+	private final boolean raised;
+	private final long timeMillis;
+
+	Alert(AlertRule rule, DeviceParameters sensor, int channel, String value, boolean raised, long timeMillis) {
+		this.rule = rule;
+		this.sensor = sensor;
+		this.channel = channel;
+		this.value = value;
+		this.raised = raised;
+		this.timeMillis = timeMillis;
+	}
+
+	public AlertRule getRule() {
+		return rule;
+	}
+
+	public DeviceParameters getSensor() {
+		return sensor;
+	}
+
+	/**
+	 * @return the sensor number, -1 for sensors that don't have one
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return the value that raised or cleared the alert, for rise and drop rules
+	 *         the change over the window
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return true when raised (or repeated), false when cleared
+	 */
+	public boolean isRaised() {
+		return raised;
+	}
+
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	@Override
+	public String toString() {
+		return (raised ? "RAISED " : "CLEARED ") + rule.getName() + " " + sensor + (channel >= 0 ? "[" + channel + "]" : "") + " " + rule.getField() + "=" + value;
+	}
+}
@@ -0,0 +1,403 @@
+package org.cattech.WMR88Interface;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * Callback that checks each reading against a set of AlertRules and tells the
+ * AlertListener when alerts are raised and cleared.
+ *
+ * Rules are indexed by sensor type, field and channel, so a reading is only
+ * checked against the rules for its sensor and the fields it has. Alert state is kept separately for
+ * each sensor (type and channel) a rule matches, and the window of a rise or
+ * drop rule is kept as the lowest and highest value in each of a fixed number
+ * of slices of the window. That state doesn't grow with the length of the
+ * window or the rate of readings, at the cost of the window being up to a
+ * slice longer than asked for.
+ *
+ * Register the engine with getSubscription() so the interface only decodes
+ * the fields the rules look at. The alert state can be checkpointed along with
+ * a HistoricDataEngine's sketches (see HistoricDataEngine.setAlertEngine).
+ */
+public class AlertEngine implements WMR88Callback {
+	Logger log = LogManager.getLogger(AlertEngine.class);
+
+	private static final int WINDOW_SLICES = 16;
+
+	/** A rule, with its alert state for each sensor it matches */
+	private static class IndexedRule {
+		final AlertRule rule;
+		final Map<Integer, RuleState> states = new HashMap<>();
+
+		IndexedRule(AlertRule rule) {
+			this.rule = rule;
+		}
+	}
+
+	/** The rules for one field of one sensor type */
+	private static class FieldRules {
+		final List<IndexedRule> anyChannel = new ArrayList<>();
+		final Map<Integer, List<IndexedRule>> byChannel = new HashMap<>();
+	}
+
+	private static class RuleState {
+		boolean raised;
+		long lastAlertMillis;
+		WindowExtremes window;
+	}
+
+	/**
+	 * Lowest and highest values over a sliding window, kept per slice of the
+	 * window in a ring of slices.
+	 */
+	private static class WindowExtremes {
+		private final long sliceMillis;
+		private final long[] sliceOf = new long[WINDOW_SLICES];
+		private final double[] lowest = new double[WINDOW_SLICES];
+		private final double[] highest = new double[WINDOW_SLICES];
+		private long latestSlice;
+
+		WindowExtremes(long windowMillis) {
+			// One slice is always partly filled, the rest cover the window
+			this.sliceMillis = Math.max(1, windowMillis / (WINDOW_SLICES - 1));
+			Arrays.fill(sliceOf, -1);
+		}
+
+		void add(long timeMillis, double value) {
+			long slice = timeMillis / sliceMillis;
+			int i = (int) (slice % WINDOW_SLICES);
+			if (sliceOf[i] != slice) {
+				sliceOf[i] = slice;
+				lowest[i] = value;
+				highest[i] = value;
+			} else {
+				lowest[i] = Math.min(lowest[i], value);
+				highest[i] = Math.max(highest[i], value);
+			}
+			latestSlice = Math.max(latestSlice, slice);
+		}
+
+		double lowest() {
+			double result = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < WINDOW_SLICES; i++) {
+				if (sliceOf[i] > latestSlice - WINDOW_SLICES) {
+					result = Math.min(result, lowest[i]);
+				}
+			}
+			return result;
+		}
+
+		double highest() {
+			double result = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < WINDOW_SLICES; i++) {
+				if (sliceOf[i] > latestSlice - WINDOW_SLICES) {
+					result = Math.max(result, highest[i]);
+				}
+			}
+			return result;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			for (int i = 0; i < WINDOW_SLICES; i++) {
+				out.writeLong(sliceOf[i]);
+				out.writeDouble(lowest[i]);
+				out.writeDouble(highest[i]);
+			}
+			out.writeLong(latestSlice);
+		}
+
+		void readFrom(DataInputStream in) throws IOException {
+			for (int i = 0; i < WINDOW_SLICES; i++) {
+				sliceOf[i] = in.readLong();
+				lowest[i] = in.readDouble();
+				highest[i] = in.readDouble();
+			}
+			latestSlice = in.readLong();
+		}
+	}
+
+	private final Map<String, IndexedRule> rules = new LinkedHashMap<>();
+	// Per sensor type, the rules for each field
+	private final EnumMap<DeviceParameters, Map<String, FieldRules>> index = new EnumMap<>(DeviceParameters.class);
+
+	private AlertListener listener = alert -> log.warn(alert.toString());
+	private long evaluations;
+
+	/**
+	 * Compile and add a rule, replacing any rule of the same name.
+	 *
+	 * @throws IllegalArgumentException if the expression can't be understood
+	 */
+	public void addRule(String name, String expression) {
+		addRule(AlertRule.compile(name, expression));
+	}
+
+	public synchronized void addRule(AlertRule rule) {
+		rules.put(rule.getName(), new IndexedRule(rule));
+		reindex();
+	}
+
+	public synchronized void removeRule(String name) {
+		if (rules.remove(name) != null) {
+			reindex();
+		}
+	}
+
+	/**
+	 * Alerts are logged as warnings unless a listener is set.
+	 */
+	public void setAlertListener(AlertListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return the sensor types and fields the current rules look at
+	 */
+	public synchronized Subscription getSubscription() {
+		Set<DeviceParameters> sensors = EnumSet.noneOf(DeviceParameters.class);
+		Set<String> fields = new LinkedHashSet<>();
+		for (IndexedRule indexed : rules.values()) {
+			DeviceParameters sensor = indexed.rule.getSensor();
+			if (sensor == null) {
+				sensors.addAll(EnumSet.complementOf(EnumSet.of(DeviceParameters.INVALID)));
+			} else {
+				sensors.add(sensor);
+			}
+			fields.add(indexed.rule.getField());
+		}
+		Subscription subscription = new Subscription();
+		// A subscription to nothing would be a subscription to everything
+		subscription.setSensors(sensors.isEmpty() ? EnumSet.of(DeviceParameters.INVALID) : sensors);
+		subscription.setFields(fields.toArray(new String[fields.size()]));
+		return subscription;
+	}
+
+	/**
+	 * @return how many times a reading has been checked against a rule
+	 */
+	public synchronized long getEvaluations() {
+		return evaluations;
+	}
+
+	/**
+	 * Write the alert state of each rule, which sensors it is raised for and the
+	 * window of a rise or drop rule, for a checkpoint.
+	 */
+	synchronized void writeState(DataOutputStream out) throws IOException {
+		out.writeInt(rules.size());
+		for (IndexedRule indexed : rules.values()) {
+			out.writeUTF(indexed.rule.getName());
+			out.writeUTF(indexed.rule.getExpression());
+			out.writeInt(indexed.states.size());
+			for (Map.Entry<Integer, RuleState> entry : indexed.states.entrySet()) {
+				RuleState state = entry.getValue();
+				out.writeInt(entry.getKey());
+				out.writeBoolean(state.raised);
+				out.writeLong(state.lastAlertMillis);
+				out.writeBoolean(state.window != null);
+				if (state.window != null) {
+					state.window.writeTo(out);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Carry on from alert state written by writeState. Only rules that have the
+	 * same name and expression as when it was written get their state back, the
+	 * rest start afresh. Nothing changes if the state can't be read.
+	 */
+	synchronized void readState(DataInputStream in) throws IOException {
+		Map<IndexedRule, Map<Integer, RuleState>> restored = new HashMap<>();
+		int ruleCount = in.readInt();
+		for (int i = 0; i < ruleCount; i++) {
+			String name = in.readUTF();
+			String expression = in.readUTF();
+			IndexedRule indexed = rules.get(name);
+			if (indexed != null && !indexed.rule.getExpression().equals(expression)) {
+				indexed = null;
+			}
+			Map<Integer, RuleState> states = new HashMap<>();
+			int stateCount = in.readInt();
+			for (int j = 0; j < stateCount; j++) {
+				int key = in.readInt();
+				RuleState state = new RuleState();
+				state.raised = in.readBoolean();
+				state.lastAlertMillis = in.readLong();
+				if (in.readBoolean()) {
+					state.window = new WindowExtremes(indexed != null ? indexed.rule.getWindowMillis() : 0);
+					state.window.readFrom(in);
+				}
+				states.put(key, state);
+			}
+			if (indexed != null) {
+				restored.put(indexed, states);
+			}
+		}
+		for (Map.Entry<IndexedRule, Map<Integer, RuleState>> entry : restored.entrySet()) {
+			entry.getKey().states.clear();
+			entry.getKey().states.putAll(entry.getValue());
+		}
+	}
+
+	@Override
+	public void receiveData(String jsonData) {
+		evaluate(System.currentTimeMillis(), jsonData);
+	}
+
+	/**
+	 * Check a reading as if it was received at the given time, for replaying old
+	 * readings. Times must not go backwards.
+	 */
+	public synchronized void evaluate(long timeMillis, String jsonData) {
+		JSONObject reading = new JSONObject(jsonData);
+		if (reading.has("Error") || !reading.has("Type")) {
+			return;
+		}
+		DeviceParameters sensor;
+		try {
+			sensor = DeviceParameters.valueOf(reading.getString("Type"));
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		Map<String, FieldRules> sensorRules = index.get(sensor);
+		if (sensorRules == null) {
+			return;
+		}
+		int channel = reading.optInt("SensorNumber", -1);
+
+		for (Map.Entry<String, FieldRules> entry : sensorRules.entrySet()) {
+			if (!reading.has(entry.getKey())) {
+				continue;
+			}
+			Object value = reading.get(entry.getKey());
+			FieldRules fieldRules = entry.getValue();
+			evaluate(fieldRules.anyChannel, sensor, channel, value, timeMillis);
+			if (channel >= 0 && !fieldRules.byChannel.isEmpty()) {
+				List<IndexedRule> channelRules = fieldRules.byChannel.get(channel);
+				if (channelRules != null) {
+					evaluate(channelRules, sensor, channel, value, timeMillis);
+				}
+			}
+		}
+	}
+
+	private void evaluate(List<IndexedRule> rules, DeviceParameters sensor, int channel, Object value, long timeMillis) {
+		for (IndexedRule indexed : rules) {
+			evaluations++;
+			evaluate(indexed, sensor, channel, value, timeMillis);
+		}
+	}
+
+	private void evaluate(IndexedRule indexed, DeviceParameters sensor, int channel, Object value, long timeMillis) {
+		AlertRule rule = indexed.rule;
+		Integer key = sensor.ordinal() * 257 + channel + 1;
+		RuleState state = indexed.states.get(key);
+		if (state == null) {
+			state = new RuleState();
+			indexed.states.put(key, state);
+		}
+
+		boolean raise;
+		boolean clear;
+		String shown;
+		if (rule.isText()) {
+			raise = rule.raisesText(value.toString());
+			clear = !raise;
+			shown = value.toString();
+		} else {
+			double number;
+			try {
+				// Most decimal values are strings, formatted with the station's locale
+				number = WMR88InterfaceThread.decimalValue(value);
+			} catch (NumberFormatException e) {
+				log.debug("Rule " + rule + " skipped, " + value + " isn't a number");
+				return;
+			}
+			if (rule.getChange() != null) {
+				if (state.window == null) {
+					state.window = new WindowExtremes(rule.getWindowMillis());
+				}
+				state.window.add(timeMillis, number);
+				number = rule.getChange() == AlertRule.Change.DROP ? state.window.highest() - number : number - state.window.lowest();
+			}
+			raise = rule.raises(number);
+			clear = rule.clears(number);
+			shown = rule.getChange() != null ? String.format("%.1f", number) : value.toString();
+		}
+
+		if (!state.raised) {
+			if (raise) {
+				state.raised = true;
+				fire(state, new Alert(rule, sensor, channel, shown, true, timeMillis));
+			}
+		} else if (clear) {
+			state.raised = false;
+			fire(state, new Alert(rule, sensor, channel, shown, false, timeMillis));
+		} else if (rule.getRepeatMillis() > 0 && timeMillis - state.lastAlertMillis >= rule.getRepeatMillis()) {
+			fire(state, new Alert(rule, sensor, channel, shown, true, timeMillis));
+		}
+	}
+
+	private void fire(RuleState state, Alert alert) {
+		state.lastAlertMillis = alert.getTimeMillis();
+		try {
+			listener.alert(alert);
+		} catch (RuntimeException e) {
+			log.error("Alert listener failed to process " + alert, e);
+		}
+	}
+
+	private void reindex() {
+		index.clear();
+		for (IndexedRule indexed : rules.values()) {
+			DeviceParameters sensor = indexed.rule.getSensor();
+			if (sensor == null) {
+				for (DeviceParameters any : DeviceParameters.values()) {
+					addToIndex(any, indexed);
+				}
+			} else {
+				addToIndex(sensor, indexed);
+			}
+		}
+	}
+
+	private void addToIndex(DeviceParameters sensor, IndexedRule indexed) {
+		Map<String, FieldRules> sensorRules = index.get(sensor);
+		if (sensorRules == null) {
+			sensorRules = new HashMap<>();
+			index.put(sensor, sensorRules);
+		}
+		FieldRules fieldRules = sensorRules.get(indexed.rule.getField());
+		if (fieldRules == null) {
+			fieldRules = new FieldRules();
+			sensorRules.put(indexed.rule.getField(), fieldRules);
+		}
+		int channel = indexed.rule.getChannel();
+		if (channel < 0) {
+			fieldRules.anyChannel.add(indexed);
+		} else {
+			List<IndexedRule> channelRules = fieldRules.byChannel.get(channel);
+			if (channelRules == null) {
+				channelRules = new ArrayList<>();
+				fieldRules.byChannel.put(channel, channelRules);
+			}
+			channelRules.add(indexed);
+		}
+	}
+}
@@ -0,0 +1,5 @@
+package org.cattech.WMR88Interface;
+
+public interface AlertListener {
+	abstract void alert(Alert alert);
+}
@@ -0,0 +1,239 @@
+package org.cattech.WMR88Interface;
+
+import java.util.function.DoublePredicate;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An alert rule compiled from an expression such as
+ *
+ * <pre>
+ *     Anemometer.WindGust &gt; 40 clear 35
+ *     Thermohygrometer[3].Temperature &lt; 0
+ *     Barometer.pressureRelative drop 4 in 3h
+ *     *.Battery == Low repeat 12h
+ * </pre>
+ *
+ * The grammar is :
+ *
+ * <pre>
+ *     rule      := source condition [clear number] [repeat duration]
+ *     source    := (sensorType | *) [ "[" channel "]" ] . field
+ *     condition := (&gt; | &gt;= | &lt; | &lt;= | == | !=) value
+ *                | (rise | drop) number in duration
+ *     duration  := number (s | m | h | d)
+ * </pre>
+ *
+ * A rule raises an alert when its condition becomes true, and clears it once
+ * the value is back past the clear threshold (the condition's own threshold
+ * if none is given), so a value hovering around the threshold doesn't keep
+ * raising alerts. While an alert is raised it's only repeated if the rule says
+ * how often to.
+ *
+ * rise and drop compare the latest value with the lowest or highest value in
+ * the window before it. == and != compare text unless the value is a number.
+ */
+public class AlertRule {
+	private static final Pattern RULE = Pattern.compile("\\s*(\\*|\\w+)(?:\\[(\\d+)\\])?\\.(\\w+)\\s+" //
+			+ "(?:(>=|<=|==|!=|>|<)\\s*(\\S+)|(rise|drop)\\s+(\\S+)\\s+in\\s+(\\S+))" //
+			+ "(?:\\s+clear\\s+(\\S+))?(?:\\s+repeat\\s+(\\S+))?\\s*");
+
+	enum Change {
+		RISE, DROP
+	}
+
+	private final String name;
+	private final String expression;
+	// Null for any sensor type
+	private final DeviceParameters sensor;
+	// -1 for any channel
+	private final int channel;
+	private final String field;
+
+	// Set for numeric comparisons and windowed changes
+	private final DoublePredicate raise;
+	private final DoublePredicate clear;
+	// Set for text comparisons
+	private final Predicate<String> textRaise;
+
+	private final Change change;
+	private final long windowMillis;
+	private final long repeatMillis;
+
+	private AlertRule(String name, String expression, DeviceParameters sensor, int channel, String field, DoublePredicate raise, DoublePredicate clear,
+			Predicate<String> textRaise, Change change, long windowMillis, long repeatMillis) {
+		this.name = name;
+		this.expression = expression;
+		this.sensor = sensor;
+		this.channel = channel;
+		this.field = field;
+		this.raise = raise;
+		this.clear = clear;
+		this.textRaise = textRaise;
+		this.change = change;
+		this.windowMillis = windowMillis;
+		this.repeatMillis = repeatMillis;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the expression can't be understood
+	 */
+	public static AlertRule compile(String name, String expression) {
+		Matcher m = RULE.matcher(expression);
+		if (!m.matches()) {
+			throw new IllegalArgumentException("Unable to understand rule " + name + " : " + expression);
+		}
+		DeviceParameters sensor = m.group(1).equals("*") ? null : DeviceParameters.valueOf(m.group(1));
+		int channel = m.group(2) == null ? -1 : Integer.parseInt(m.group(2));
+		String field = m.group(3);
+		long repeatMillis = m.group(10) == null ? 0 : parseDuration(m.group(10));
+		Double clearAt = m.group(9) == null ? null : parseNumber(m.group(9));
+
+		if (m.group(6) != null) {
+			Change change = Change.valueOf(m.group(6).toUpperCase());
+			double amount = parseNumber(m.group(7));
+			double clearAmount = clearAt == null ? amount : clearAt;
+			return new AlertRule(name, expression, sensor, channel, field, v -> v >= amount, v -> v < clearAmount, null, change, parseDuration(m.group(8)),
+					repeatMillis);
+		}
+
+		String op = m.group(4);
+		String value = m.group(5);
+		Double threshold = asNumber(value);
+		if (threshold == null) {
+			if (op.equals("==")) {
+				return new AlertRule(name, expression, sensor, channel, field, null, null, value::equals, null, 0, repeatMillis);
+			} else if (op.equals("!=")) {
+				return new AlertRule(name, expression, sensor, channel, field, null, null, v -> !value.equals(v), null, 0, repeatMillis);
+			}
+			throw new IllegalArgumentException("Rule " + name + " compares text with " + op + " : " + expression);
+		}
+
+		double t = threshold;
+		double c = clearAt == null ? t : clearAt;
+		DoublePredicate raise;
+		DoublePredicate clear;
+		switch (op) {
+		case ">":
+			raise = v -> v > t;
+			clear = v -> v <= c;
+			break;
+		case ">=":
+			raise = v -> v >= t;
+			clear = v -> v < c;
+			break;
+		case "<":
+			raise = v -> v < t;
+			clear = v -> v >= c;
+			break;
+		case "<=":
+			raise = v -> v <= t;
+			clear = v -> v > c;
+			break;
+		case "==":
+			raise = v -> v == t;
+			clear = v -> v != t;
+			break;
+		default:
+			raise = v -> v != t;
+			clear = v -> v == t;
+			break;
+		}
+		return new AlertRule(name, expression, sensor, channel, field, raise, clear, null, null, 0, repeatMillis);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * @return the sensor type the rule applies to, null for all of them
+	 */
+	public DeviceParameters getSensor() {
+		return sensor;
+	}
+
+	/**
+	 * @return the channel the rule applies to, -1 for all of them
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	public String getField() {
+		return field;
+	}
+
+	boolean isText() {
+		return textRaise != null;
+	}
+
+	Change getChange() {
+		return change;
+	}
+
+	long getWindowMillis() {
+		return windowMillis;
+	}
+
+	long getRepeatMillis() {
+		return repeatMillis;
+	}
+
+	boolean raises(double value) {
+		return raise.test(value);
+	}
+
+	boolean clears(double value) {
+		return clear.test(value);
+	}
+
+	boolean raisesText(String value) {
+		return textRaise.test(value);
+	}
+
+	@Override
+	public String toString() {
+		return name + " : " + expression;
+	}
+
+	private static Double asNumber(String value) {
+		try {
+			return Double.valueOf(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static double parseNumber(String value) {
+		Double number = asNumber(value);
+		if (number == null) {
+			throw new IllegalArgumentException("Not a number : " + value);
+		}
+		return number;
+	}
+
+	static long parseDuration(String duration) {
+		if (duration.length() < 2) {
+			throw new IllegalArgumentException("Not a duration : " + duration);
+		}
+		double amount = parseNumber(duration.substring(0, duration.length() - 1));
+		switch (duration.charAt(duration.length() - 1)) {
+		case 's':
+			return (long) (amount * 1000);
+		case 'm':
+			return (long) (amount * 60_000);
+		case 'h':
+			return (long) (amount * 3600_000);
+		case 'd':
+			return (long) (amount * 86400_000);
+		default:
+			throw new IllegalArgumentException("Not a duration : " + duration);
+		}
+	}
+}
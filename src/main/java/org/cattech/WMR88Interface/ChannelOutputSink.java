@@ -0,0 +1,181 @@
+package org.cattech.WMR88Interface;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Callback that writes readings to a file, named pipe or standard output
+ * through an NIO channel, buffering them and writing out the buffer when it
+ * fills or every flush interval, rather than once per reading.
+ */
+public class ChannelOutputSink implements WMR88Callback {
+	Logger log = LogManager.getLogger(ChannelOutputSink.class);
+
+	public enum Format {
+		/** One JSON reading per line */
+		NDJSON,
+		/** Each JSON reading as a 4 byte big endian length followed by that many UTF-8 bytes */
+		BINARY,
+	}
+
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	private final WritableByteChannel channel;
+	private final Format format;
+	private final long flushIntervalMs;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+	private Thread flusher;
+	private long lastFlushMillis;
+	private boolean failed;
+
+	public ChannelOutputSink(WritableByteChannel channel, Format format, long flushIntervalMs) {
+		this.channel = channel;
+		this.format = format;
+		this.flushIntervalMs = flushIntervalMs;
+
+		// Make sure buffered readings go out even when no more arrive
+		if (flushIntervalMs > 0) {
+			flusher = new Thread(this::flushPeriodically, "WMR88 Output Flush");
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+	}
+
+	/**
+	 * Append to a file, or write to a named pipe.
+	 */
+	public static ChannelOutputSink toPath(Path path, Format format, long flushIntervalMs) throws IOException {
+		return new ChannelOutputSink(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), format, flushIntervalMs);
+	}
+
+	public static ChannelOutputSink toStandardOutput(Format format, long flushIntervalMs) {
+		return new ChannelOutputSink(Channels.newChannel(new FileOutputStream(FileDescriptor.out)), format, flushIntervalMs);
+	}
+
+	@Override
+	public synchronized void receiveData(String jsonData) {
+		if (failed) {
+			return;
+		}
+		try {
+			CharBuffer chars = CharBuffer.wrap(jsonData);
+			int start = buffer.position();
+			if (format == Format.BINARY) {
+				ensureRemaining(4);
+				start = buffer.position();
+				buffer.putInt(0);
+			}
+
+			encoder.reset();
+			while (true) {
+				CoderResult result = encoder.encode(chars, buffer, true);
+				if (result.isUnderflow()) {
+					break;
+				}
+				if (result.isError()) {
+					result.throwException();
+				}
+				if (start == 0) {
+					log.error("Reading too large to write, skipped : " + jsonData.length() + " characters");
+					buffer.clear();
+					return;
+				}
+				// Write out the readings before this one, and carry on encoding it at the
+				// front of the buffer
+				int end = buffer.position();
+				buffer.flip();
+				buffer.limit(start);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				buffer.limit(end);
+				buffer.compact();
+				start = 0;
+			}
+
+			if (format == Format.BINARY) {
+				buffer.putInt(start, buffer.position() - start - 4);
+			} else {
+				ensureRemaining(1);
+				buffer.put((byte) '\n');
+			}
+
+			if (flushIntervalMs <= 0 || System.currentTimeMillis() - lastFlushMillis >= flushIntervalMs) {
+				flush();
+			}
+		} catch (IOException e) {
+			// Give up after the first failure, a closed pipe would fail every reading after it
+			log.error("Unable to write readings, output stopped", e);
+			failed = true;
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		buffer.flip();
+		writeBuffer();
+		lastFlushMillis = System.currentTimeMillis();
+	}
+
+	public synchronized void close() throws IOException {
+		if (flusher != null) {
+			flusher.interrupt();
+			flusher = null;
+		}
+		if (!failed) {
+			flush();
+		}
+		channel.close();
+	}
+
+	/**
+	 * Write out the buffer, which must be flipped, leaving it cleared.
+	 */
+	private void writeBuffer() throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void ensureRemaining(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	private void flushPeriodically() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(flushIntervalMs);
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (this) {
+				if (!failed && buffer.position() > 0 && System.currentTimeMillis() - lastFlushMillis >= flushIntervalMs) {
+					try {
+						flush();
+					} catch (IOException e) {
+						log.error("Unable to write readings, output stopped", e);
+						failed = true;
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,11 +1,36 @@
 package org.cattech.WMR88Interface;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.Set;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 public class CommandLineMonitor {
 	static Logger log = LogManager.getLogger(CommandLineMonitor.class);
-	
+
+	private static final String USAGE = "Arguments : [--simulate [stations]] [--frames count] [--format json|ndjson|binary] [--out file] [--flush-ms ms] [--sensors type,...] [--channels n,...] [--fields name,...] [--listen port | --bridge host:port]\n" //
+			+ "  --simulate  read from simulated stations instead of the USB device\n" //
+			+ "  --frames    exit after printing this many readings\n" //
+			+ "  --format    json prints each reading as it arrives (default), ndjson buffers them,\n" //
+			+ "              binary writes each as a 4 byte length and the UTF-8 JSON\n" //
+			+ "  --out       write to this file or named pipe instead of standard output\n" //
+			+ "  --flush-ms  how long ndjson and binary output may be held back (default 1000)\n" //
+			+ "  --sensors   only output these sensor types, e.g. Rainfall,Anemometer\n" //
+			+ "  --channels  only output readings from these sensor numbers, e.g. 1,2\n" //
+			+ "  --fields    only decode and output these fields, e.g. Temperature,WindGust\n" //
+			+ "  --listen    output readings from every station that connects to this port\n" //
+			+ "  --bridge    forward the station's reports to a --listen monitor instead";
+
+	private static WMR88InterfaceThread wThread;
+	private static NetworkStationServer server;
+	private static long frameLimit;
+	private static long framesReceived;
+	private static WMR88Callback output;
+
 	static class InternalCallback implements WMR88Callback {
 		@Override
 		public void receiveData(String jsonData) {
@@ -13,26 +38,176 @@ public class CommandLineMonitor {
 		}
 	}
 
-	public static void main(String[] args) {
-		WMR88InterfaceThread wThread = new WMR88InterfaceThread();
-
-		wThread.setCallback(new InternalCallback());
-		
-		new Thread(wThread, "WMR88 Interface").start();
-		
-		while(wThread.isRunning()) {
-			try {
-				Thread.sleep(100000);
-			} catch (InterruptedException e) {
-				log.error("Main loop interrupted, terminating",e);
+	public static void main(String[] args) throws IOException {
+		wThread = new WMR88InterfaceThread();
+		server = null;
+		frameLimit = 0;
+		framesReceived = 0;
+
+		String format = "json";
+		String outPath = null;
+		long flushMs = 1000;
+		Subscription subscription = new Subscription();
+		WMR88ReportSource source = null;
+		int listenPort = -1;
+		InetSocketAddress bridgeAddress = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--simulate":
+					int stations = (i + 1 < args.length && !args[i + 1].startsWith("--")) ? Integer.parseInt(args[++i]) : 1;
+					StationSimulator simulator = new StationSimulator(stations);
+					simulator.setFramesPerSecond(0);
+					source = simulator;
+					break;
+				case "--frames":
+					frameLimit = Long.parseLong(args[++i]);
+					break;
+				case "--format":
+					format = args[++i];
+					break;
+				case "--out":
+					outPath = args[++i];
+					break;
+				case "--flush-ms":
+					flushMs = Long.parseLong(args[++i]);
+					break;
+				case "--sensors":
+					Set<DeviceParameters> sensors = EnumSet.noneOf(DeviceParameters.class);
+					for (String sensor : args[++i].split(",")) {
+						sensors.add(DeviceParameters.valueOf(sensor.trim()));
+					}
+					subscription.setSensors(sensors);
+					break;
+				case "--channels":
+					String[] channelArgs = args[++i].split(",");
+					int[] channels = new int[channelArgs.length];
+					for (int c = 0; c < channels.length; c++) {
+						channels[c] = Integer.parseInt(channelArgs[c].trim());
+					}
+					subscription.setChannels(channels);
+					break;
+				case "--fields":
+					subscription.setFields(args[++i].split(","));
+					break;
+				case "--listen":
+					listenPort = Integer.parseInt(args[++i]);
+					break;
+				case "--bridge":
+					String[] hostPort = args[++i].split(":");
+					bridgeAddress = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown argument " + args[i]);
+				}
+			}
+			output = createOutput(format, outPath, flushMs);
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.err.println(e.getMessage() + "\n" + USAGE);
+			return;
+		}
+
+		if (bridgeAddress != null) {
+			new NetworkStationBridge(source != null ? source : new HIDReportSource(), bridgeAddress).run();
+			return;
+		}
+		if (listenPort >= 0) {
+			listen(listenPort, subscription);
+			return;
+		}
+
+		if (source != null) {
+			wThread.setReportSource(source);
+		}
+		wThread.addCallback(new InternalCallback(), subscription);
+
+		Thread interfaceThread = new Thread(wThread, "WMR88 Interface");
+		interfaceThread.start();
+
+		// Only needed once something goes wrong, so don't hold up opening the station for it.
+		// -Dwmr88.flightRecorderDir=<dir> keeps a flight recording running and dumps it there on error
+		String flightRecorderDir = System.getProperty("wmr88.flightRecorderDir");
+		if (flightRecorderDir != null) {
+			StationFlightRecorder flightRecorder = new StationFlightRecorder(Paths.get(flightRecorderDir));
+			flightRecorder.start();
+			wThread.setFlightRecorder(flightRecorder);
+		}
+
+		try {
+			interfaceThread.join();
+		} catch (InterruptedException e) {
+			log.error("Main loop interrupted, terminating", e);
+		}
+		if (output instanceof ChannelOutputSink) {
+			((ChannelOutputSink) output).close();
+		}
+	}
+
+	/**
+	 * Decode every station that connects, all of them feeding the one output,
+	 * until the frame limit is reached.
+	 */
+	private static void listen(int port, Subscription subscription) throws IOException {
+		server = new NetworkStationServer(port, station -> station.addCallback(new InternalCallback(), subscription));
+		server.start();
+		try {
+			server.join();
+		} catch (InterruptedException e) {
+			log.error("Main loop interrupted, terminating", e);
+		}
+		if (output instanceof ChannelOutputSink) {
+			((ChannelOutputSink) output).close();
+		}
+	}
+
+	/**
+	 * @return where readings go, or null to print them as they arrive
+	 */
+	private static WMR88Callback createOutput(String format, String outPath, long flushMs) throws IOException {
+		ChannelOutputSink.Format channelFormat;
+		switch (format) {
+		case "json":
+			if (outPath == null) {
+				return null;
 			}
+			// Written straight through, like printing them
+			flushMs = 0;
+			channelFormat = ChannelOutputSink.Format.NDJSON;
+			break;
+		case "ndjson":
+			channelFormat = ChannelOutputSink.Format.NDJSON;
+			break;
+		case "binary":
+			channelFormat = ChannelOutputSink.Format.BINARY;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+		if (outPath == null) {
+			return ChannelOutputSink.toStandardOutput(channelFormat, flushMs);
 		}
-		
+		return ChannelOutputSink.toPath(Paths.get(outPath), channelFormat, flushMs);
 	}
-	
-	private static void receivedData(String jsonData) {
-		System.out.println(jsonData);
+
+	private static synchronized void receivedData(String jsonData) {
+		// Stopping takes a while, readings already on their way are dropped
+		if (frameLimit > 0 && framesReceived >= frameLimit) {
+			return;
+		}
+		if (output == null) {
+			System.out.println(jsonData);
+		} else {
+			output.receiveData(jsonData);
+		}
+
+		if (frameLimit > 0 && ++framesReceived >= frameLimit) {
+			if (server != null) {
+				server.stop();
+			} else {
+				wThread.stop();
+			}
+		}
 	}
-	
 
 }
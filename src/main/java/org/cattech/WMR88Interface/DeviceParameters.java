@@ -18,8 +18,11 @@ public enum DeviceParameters {
 				
 	}
 
+	// values() copies the array every call, this is looked up for every frame
+	private static final DeviceParameters[] VALUES = values();
+
 	static DeviceParameters lookup(int i) {
-		for (DeviceParameters devParm : DeviceParameters.values()) {
+		for (DeviceParameters devParm : VALUES) {
 			if (devParm.id == i) {
 				return devParm;
 			}
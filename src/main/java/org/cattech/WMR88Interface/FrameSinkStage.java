@@ -0,0 +1,79 @@
+package org.cattech.WMR88Interface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pipeline stage delivering raw frames to a frame callback. Each queued frame
+ * holds a reference for the callback to release, frames the stage has to drop
+ * or discard are released by the stage.
+ */
+class FrameSinkStage extends PipelineStage<FrameView> {
+
+	private final WMR88FrameCallback callback;
+	private final Subscription subscription;
+	private final List<FrameView> selected = new ArrayList<>();
+
+	FrameSinkStage(WMR88FrameCallback callback, int bufferSize, int batchSize, Subscription subscription) {
+		super(bufferSize, batchSize);
+		this.callback = callback;
+		this.subscription = subscription;
+	}
+
+	Subscription getSubscription() {
+		return subscription;
+	}
+
+	WMR88FrameCallback getCallback() {
+		return callback;
+	}
+
+	void publish(List<FrameView> frames) {
+		selected.clear();
+		for (int i = 0; i < frames.size(); i++) {
+			FrameView frame = frames.get(i);
+			if (subscription.wants(frame.getSensor(), frame.getChannel())) {
+				frame.retain();
+				selected.add(frame);
+			}
+		}
+		if (selected.isEmpty()) {
+			return;
+		}
+		int accepted = enqueue(selected);
+		for (int i = accepted; i < selected.size(); i++) {
+			selected.get(i).release();
+		}
+	}
+
+	@Override
+	void deliver(FrameView frame) {
+		// The callback owns the frame's reference once called, even if it throws,
+		// as it may already have released it
+		boolean handedOver = false;
+		try {
+			WMR88Events.Callback callbackEvent = new WMR88Events.Callback();
+			callbackEvent.begin();
+			handedOver = true;
+			try {
+				callback.receiveFrame(frame);
+			} catch (RuntimeException e) {
+				log.error("Frame callback failed to process frame " + frame, e);
+			}
+			callbackEvent.end();
+			if (callbackEvent.shouldCommit()) {
+				callbackEvent.sink = getName();
+				callbackEvent.commit();
+			}
+		} finally {
+			if (!handedOver) {
+				frame.release();
+			}
+		}
+	}
+
+	@Override
+	void discard(FrameView frame) {
+		frame.release();
+	}
+}
@@ -0,0 +1,231 @@
+package org.cattech.WMR88Interface;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read only view of one station frame, shared by all the frame callbacks.
+ *
+ * Views are pooled : each frame assembled from the station buffer is written
+ * once into a free view, every frame callback that wants it reads that same
+ * view, and it goes back to the pool once all of them have released it. Values
+ * are read straight from the frame bytes, nothing is decoded until asked for.
+ *
+ * The sensor value accessors return the values in the station's own units
+ * (degrees Celsius, metres per second, hPa and inches) and throw
+ * IllegalStateException unless the frame is a valid frame from that type of
+ * sensor.
+ */
+public final class FrameView {
+	private final Queue<FrameView> pool;
+	private final AtomicInteger references = new AtomicInteger();
+
+	private byte[] bytes = new byte[32];
+	private int length;
+	private DeviceParameters sensor;
+	private int channel;
+	private boolean checksumValid;
+	private long receivedMillis;
+
+	FrameView(Queue<FrameView> pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Fill the view with length bytes of a frame from offset, holding one
+	 * reference for the caller.
+	 */
+	void set(byte[] frame, int offset, int length, DeviceParameters sensor, int channel, boolean checksumValid, long receivedMillis) {
+		if (bytes.length < length) {
+			bytes = new byte[length];
+		}
+		System.arraycopy(frame, offset, bytes, 0, length);
+		this.length = length;
+		this.sensor = sensor;
+		this.channel = channel;
+		this.checksumValid = checksumValid;
+		this.receivedMillis = receivedMillis;
+		references.set(1);
+	}
+
+	void retain() {
+		references.incrementAndGet();
+	}
+
+	/**
+	 * Say this callback is done with the frame. The view must not be used after
+	 * releasing it.
+	 */
+	public void release() {
+		int remaining = references.decrementAndGet();
+		if (remaining == 0) {
+			pool.offer(this);
+		} else if (remaining < 0) {
+			throw new IllegalStateException("Frame released more often than it was delivered");
+		}
+	}
+
+	public DeviceParameters getSensor() {
+		return sensor;
+	}
+
+	/**
+	 * @return the sensor ID byte, or -1 if the frame is too short to have one
+	 */
+	public int getSensorId() {
+		return length > 1 ? getByte(1) : -1;
+	}
+
+	/**
+	 * @return the sensor number, or -1 for sensors that don't have one
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return true if the frame has the right length and checksum for its sensor
+	 */
+	public boolean isChecksumValid() {
+		return checksumValid;
+	}
+
+	public long getReceivedMillis() {
+		return receivedMillis;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	// Raw access, with the same meaning as the WMRBuffer methods of the same name
+
+	public int getByte(int bytePos) {
+		if (bytePos >= length) {
+			throw new IndexOutOfBoundsException("Byte " + bytePos + " of a " + length + " byte frame");
+		}
+		return Byte.toUnsignedInt(bytes[bytePos]);
+	}
+
+	public int getWord(int bytePos) {
+		return 256 * getByte(bytePos + 1) + getByte(bytePos);
+	}
+
+	public int getBits(int byteOffset, int bitOffset, int numBits) {
+		return (getByte(byteOffset) >> bitOffset) & ((1 << numBits) - 1);
+	}
+
+	public int getNibble(int bytePos, int nibbleOffset) {
+		return getBits(bytePos, nibbleOffset * 4, 4);
+	}
+
+	public int getNibbles(int bytePos, int nibbleOffset, int nibbleNum) {
+		int nibbles = 0;
+		for (int i = 0; i < nibbleNum; i++) {
+			nibbles += getNibble(bytePos + (nibbleOffset + i) / 2, (nibbleOffset + i) % 2) << (4 * i);
+		}
+		return nibbles;
+	}
+
+	/**
+	 * Copy the frame bytes, for forwarding them on.
+	 */
+	public void copyTo(byte[] destination, int offset) {
+		System.arraycopy(bytes, 0, destination, offset, length);
+	}
+
+	public void copyTo(ByteBuffer destination) {
+		destination.put(bytes, 0, length);
+	}
+
+	// Sensor values
+
+	public float getTemperature() {
+		expect(DeviceParameters.Thermohygrometer);
+		return signOf(getNibble(4, 1)) * getNibbles(3, 0, 3) / 10.0f;
+	}
+
+	public float getDewPoint() {
+		expect(DeviceParameters.Thermohygrometer);
+		return signOf(getNibble(7, 1)) * getNibbles(6, 0, 3) / 10.0f;
+	}
+
+	public int getHumidity() {
+		expect(DeviceParameters.Thermohygrometer);
+		return getByte(5);
+	}
+
+	public int getWindDegrees() {
+		expect(DeviceParameters.Anemometer);
+		return getByte(2) % 16 * 360 / 16;
+	}
+
+	public float getWindGust() {
+		expect(DeviceParameters.Anemometer);
+		return getNibbles(4, 0, 3) / 10.0f;
+	}
+
+	public float getWindAverage() {
+		expect(DeviceParameters.Anemometer);
+		return getNibbles(5, 1, 3) / 10.0f;
+	}
+
+	public int getPressureAbsolute() {
+		expect(DeviceParameters.Barometer);
+		return getNibbles(2, 0, 3);
+	}
+
+	public int getPressureRelative() {
+		expect(DeviceParameters.Barometer);
+		return 256 * (getByte(5) % 16) + getByte(4);
+	}
+
+	public int getUVIndex() {
+		expect(DeviceParameters.UV);
+		return getByte(3);
+	}
+
+	public float getRainfallRate() {
+		expect(DeviceParameters.Rainfall);
+		return getWord(2) / 10f;
+	}
+
+	public float getRainfallHourly() {
+		expect(DeviceParameters.Rainfall);
+		return getWord(4) / 10f;
+	}
+
+	public float getRainfallDaily() {
+		expect(DeviceParameters.Rainfall);
+		return getWord(6) / 10f;
+	}
+
+	public float getRainfallSinceReset() {
+		expect(DeviceParameters.Rainfall);
+		return getWord(8) / 10f;
+	}
+
+	private void expect(DeviceParameters expected) {
+		if (sensor != expected || !checksumValid) {
+			throw new IllegalStateException("Not a valid " + expected + " frame : " + this);
+		}
+	}
+
+	private static int signOf(int signCode) {
+		return signCode == 0 ? +1 : -1;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder(length * 3);
+		for (int i = 0; i < length; i++) {
+			if (i > 0) {
+				result.append(',');
+			}
+			int b = Byte.toUnsignedInt(bytes[i]);
+			result.append(WMRBuffer.HEX_DIGITS[b >> 4]).append(WMRBuffer.HEX_DIGITS[b & 0xF]);
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,48 @@
+package org.cattech.WMR88Interface;
+
+import java.io.IOException;
+
+import com.codeminders.hidapi.HIDDevice;
+import com.codeminders.hidapi.HIDManager;
+
+/**
+ * Reads station reports from a weather station attached over USB.
+ */
+public class HIDReportSource implements WMR88ReportSource {
+
+	/** Weather station USB vendor/product identifiers */
+	private final int STATION_PRODUCT = 0xCA01;
+	private final int STATION_VENDOR = 0x0FDE;
+
+	private HIDManager hidManager;
+	private HIDDevice hidDevice;
+
+	@Override
+	public void open() throws IOException {
+		NativeLibraryCache.loadNativeHIDLibrary();
+		hidManager = HIDManager.getInstance();
+		hidDevice = hidManager.openById(STATION_VENDOR, STATION_PRODUCT, null);
+
+		if (hidDevice == null) {
+			throw new IOException("could not open weather station device");
+		}
+	}
+
+	@Override
+	public int readTimeout(byte[] buffer, int timeoutMs) throws IOException {
+		return hidDevice.readTimeout(buffer, timeoutMs);
+	}
+
+	@Override
+	public void write(byte[] data) throws IOException {
+		hidDevice.write(data);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (hidDevice != null) {
+			hidDevice.close();
+			hidDevice = null;
+		}
+	}
+}
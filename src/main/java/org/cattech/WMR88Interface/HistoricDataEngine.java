@@ -1,6 +1,469 @@
 package org.cattech.WMR88Interface;
 
-public class HistoricDataEngine {
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * Callback that keeps QuantileSketches of chosen fields (wind gust, wind
+ * average and temperature unless told otherwise) for each sensor over the
+ * current hour, day and month, so percentiles such as the p99 gust can be had
+ * without keeping every reading.
+ *
+ * When a directory is set, each sketch is written there once its hour, day or
+ * month is over, as PERIOD-SENSOR-FIELD.sketch where PERIOD is yyyyMMddHH,
+ * yyyyMMdd or yyyyMM and SENSOR has the channel appended when the sensor has
+ * one (for example 20210112-Thermohygrometer1-Temperature.sketch). Each file
+ * holds the whole period: sketches already stored for a period are read back
+ * when it starts, so restarting part way through a day loses nothing, and are
+ * written over when it ends, so storing a period again never counts a reading
+ * twice. mergeStored combines stored sketches, for example the daily ones of a
+ * month.
+ *
+ * The sketches of the periods in progress are checkpointed to the same
+ * directory every minute (see setCheckpointInterval) and whenever a period
+ * ends, before its sketches are stored, and restore() reads them back on
+ * startup, taking the place of the old server's LAST_DAY.DAT. A crash while
+ * storing leaves the ended period in the checkpoint to be stored again.
+ * Checkpoints and sketches are written to a temporary file, synced and renamed
+ * over the old one, so a crash leaves either the old or the new file. A
+ * checkpoint ends with a CRC32 of its contents and one that
+ * doesn't match is ignored.
+ *
+ * Only the sketches are checkpointed, unless an AlertEngine is given with
+ * setAlertEngine, when its rules' alert state is checkpointed with them.
+ * Readings that arrived after the last checkpoint are lost either way.
+ */
+public class HistoricDataEngine implements WMR88Callback {
+	Logger log = LogManager.getLogger(HistoricDataEngine.class);
+
+	static final String SKETCH_SUFFIX = ".sketch";
+	static final String CHECKPOINT_FILE = "engine.checkpoint";
+	static final int CHECKPOINT_VERSION = 2;
+
+	public enum Window {
+		HOUR("yyyyMMddHH", Calendar.HOUR_OF_DAY), DAY("yyyyMMdd", Calendar.DAY_OF_MONTH), MONTH("yyyyMM", Calendar.MONTH);
+
+		final String periodFormat;
+		final int calendarField;
+
+		Window(String periodFormat, int calendarField) {
+			this.periodFormat = periodFormat;
+			this.calendarField = calendarField;
+		}
+	}
+
+	/** The sketches of one window, and the period they cover */
+	private static class WindowSketches {
+		final Window window;
+		String period;
+		long periodEndMillis;
+		// By sensor key (see sensorKey) and field
+		final Map<String, QuantileSketch> sketches = new HashMap<>();
+
+		WindowSketches(Window window) {
+			this.window = window;
+		}
+	}
+
+	private final EnumMap<DeviceParameters, String[]> fields = new EnumMap<>(DeviceParameters.class);
+	private final EnumMap<Window, WindowSketches> windows = new EnumMap<>(Window.class);
+	private final Calendar calendar = Calendar.getInstance();
+	private Path directory;
+	private long checkpointIntervalMs = 60_000;
+	private long lastCheckpointMillis;
+	private AlertEngine alertEngine;
+
+	public HistoricDataEngine() {
+		fields.put(DeviceParameters.Anemometer, new String[] { "WindGust", "WindAverage" });
+		fields.put(DeviceParameters.Thermohygrometer, new String[] { "Temperature" });
+		for (Window window : Window.values()) {
+			windows.put(window, new WindowSketches(window));
+		}
+	}
+
+	/**
+	 * Sketch these fields of this sensor type, none if no fields are given.
+	 */
+	public synchronized void setFields(DeviceParameters sensor, String... sensorFields) {
+		if (sensorFields.length == 0) {
+			fields.remove(sensor);
+		} else {
+			fields.put(sensor, sensorFields);
+		}
+	}
+
+	/**
+	 * Write sketches to this directory as their periods end.
+	 */
+	public synchronized void setDirectory(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		this.directory = directory;
+	}
+
+	/**
+	 * How often, going by the reading times, to checkpoint the periods in
+	 * progress. 0 only checkpoints when a period ends or checkpoint() is called.
+	 */
+	public void setCheckpointInterval(long checkpointIntervalMs) {
+		this.checkpointIntervalMs = checkpointIntervalMs;
+	}
+
+	/**
+	 * Checkpoint the alert state of this engine too, so raised alerts stay raised
+	 * and the windows of rise and drop rules carry on after a restore. Its rules
+	 * must be added before restore().
+	 */
+	public synchronized void setAlertEngine(AlertEngine alertEngine) {
+		this.alertEngine = alertEngine;
+	}
+
+	@Override
+	public void receiveData(String jsonData) {
+		record(System.currentTimeMillis(), jsonData);
+	}
+
+	/**
+	 * Add a reading as if it was received at the given time, for replaying old
+	 * readings. Times must not go backwards.
+	 */
+	public synchronized void record(long timeMillis, String jsonData) {
+		JSONObject reading = new JSONObject(jsonData);
+		if (reading.has("Error") || !reading.has("Type")) {
+			return;
+		}
+		DeviceParameters sensor;
+		try {
+			sensor = DeviceParameters.valueOf(reading.getString("Type"));
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		String[] sensorFields = fields.get(sensor);
+		if (sensorFields == null) {
+			return;
+		}
+		String key = sensorKey(sensor, reading.optInt("SensorNumber", -1));
+
+		boolean periodEnded = false;
+		for (WindowSketches window : windows.values()) {
+			periodEnded |= window.period != null && timeMillis >= window.periodEndMillis;
+		}
+		// Checkpoint the ended periods before storing them, so a crash part way
+		// through storing them is put right by storing them again after a restore
+		if (periodEnded) {
+			checkpointOrLog();
+		}
+		for (WindowSketches window : windows.values()) {
+			if (timeMillis >= window.periodEndMillis || window.period == null) {
+				startPeriod(window, timeMillis);
+			}
+		}
+		for (String field : sensorFields) {
+			double value = WMR88InterfaceThread.decimalValue(reading, field);
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			for (WindowSketches window : windows.values()) {
+				String sketchKey = key + "-" + field;
+				QuantileSketch sketch = window.sketches.get(sketchKey);
+				if (sketch == null) {
+					sketch = new QuantileSketch();
+					window.sketches.put(sketchKey, sketch);
+				}
+				sketch.add(value);
+			}
+		}
+
+		// Checkpoint again once ended periods are stored, so a restore doesn't store them again
+		if (directory != null && (periodEnded || (checkpointIntervalMs > 0 && timeMillis - lastCheckpointMillis >= checkpointIntervalMs))) {
+			checkpointOrLog();
+			lastCheckpointMillis = timeMillis;
+		}
+	}
+
+	private void checkpointOrLog() {
+		try {
+			checkpoint();
+		} catch (IOException e) {
+			log.error("Unable to checkpoint historic data", e);
+		}
+	}
+
+	/**
+	 * @param channel the sensor number, -1 for sensors that don't have one
+	 * @return the sketch of the field for the current period of the window, null
+	 *         if there have been no values. It keeps changing as readings arrive.
+	 */
+	public synchronized QuantileSketch getSketch(Window window, DeviceParameters sensor, int channel, String field) {
+		return windows.get(window).sketches.get(sensorKey(sensor, channel) + "-" + field);
+	}
+
+	/**
+	 * @return the period the window's current sketches cover, null before the
+	 *         first reading
+	 */
+	public synchronized String getPeriod(Window window) {
+		return windows.get(window).period;
+	}
+
+	/**
+	 * Store the sketches of the periods in progress, for shutting down. Recording
+	 * can carry on, and the periods are stored again, whole, when they end.
+	 */
+	public synchronized void flush() throws IOException {
+		for (WindowSketches window : windows.values()) {
+			storeSketches(window);
+		}
+		// The stored sketches now hold everything the checkpoint did
+		if (directory != null) {
+			Files.deleteIfExists(directory.resolve(CHECKPOINT_FILE));
+		}
+	}
+
+	/**
+	 * Write the periods in progress to the checkpoint file, replacing the last
+	 * checkpoint.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		if (directory == null) {
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeBytes("WMRK");
+		out.writeInt(CHECKPOINT_VERSION);
+		out.writeInt(windows.size());
+		for (WindowSketches window : windows.values()) {
+			out.writeUTF(window.window.name());
+			out.writeUTF(window.period == null ? "" : window.period);
+			out.writeLong(window.periodEndMillis);
+			out.writeInt(window.sketches.size());
+			for (Map.Entry<String, QuantileSketch> entry : window.sketches.entrySet()) {
+				out.writeUTF(entry.getKey());
+				entry.getValue().writeTo(out);
+			}
+		}
+		out.writeBoolean(alertEngine != null);
+		if (alertEngine != null) {
+			alertEngine.writeState(out);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		writeAtomically(directory.resolve(CHECKPOINT_FILE), bytes.toByteArray());
+	}
+
+	/**
+	 * Carry on from the last checkpoint, replacing whatever has been recorded so
+	 * far. Periods that ended since are stored when the next reading arrives.
+	 *
+	 * @return false if there was no usable checkpoint
+	 */
+	public synchronized boolean restore() {
+		if (directory == null) {
+			return false;
+		}
+		Path file = directory.resolve(CHECKPOINT_FILE);
+		if (!Files.exists(file)) {
+			return false;
+		}
+		long start = System.nanoTime();
+		try {
+			byte[] bytes = Files.readAllBytes(file);
+			if (bytes.length < 8) {
+				throw new IOException("Checkpoint is truncated");
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 8);
+			if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong()) {
+				throw new IOException("Checkpoint is corrupt, CRC doesn't match");
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+			byte[] magic = new byte[4];
+			in.readFully(magic);
+			int version = in.readInt();
+			// Version 1 had no alert state
+			if (!"WMRK".equals(new String(magic, "US-ASCII")) || version < 1 || version > CHECKPOINT_VERSION) {
+				throw new IOException("Not a version 1 to " + CHECKPOINT_VERSION + " checkpoint");
+			}
+
+			EnumMap<Window, WindowSketches> restored = new EnumMap<>(Window.class);
+			int windowCount = in.readInt();
+			for (int i = 0; i < windowCount; i++) {
+				WindowSketches window = new WindowSketches(Window.valueOf(in.readUTF()));
+				String period = in.readUTF();
+				window.period = period.isEmpty() ? null : period;
+				window.periodEndMillis = in.readLong();
+				int sketchCount = in.readInt();
+				for (int j = 0; j < sketchCount; j++) {
+					String key = in.readUTF();
+					window.sketches.put(key, QuantileSketch.readFrom(in));
+				}
+				restored.put(window.window, window);
+			}
+			// Last, so the alert state is only changed once everything else was read
+			if (version >= 2 && in.readBoolean() && alertEngine != null) {
+				alertEngine.readState(in);
+			}
+			windows.putAll(restored);
+		} catch (IOException | IllegalArgumentException e) {
+			log.error("Unable to restore historic data from " + file + ", starting afresh", e);
+			return false;
+		}
+		log.info("Restored historic data in " + (System.nanoTime() - start) / 1000 + "us");
+		return true;
+	}
+
+	/**
+	 * Merge the stored sketches of a field for the periods of the window from
+	 * firstPeriod to lastPeriod inclusive, for example the DAY sketches from
+	 * 20210101 to 20210131 for January.
+	 *
+	 * @return the merged sketch, empty if none were stored
+	 */
+	public synchronized QuantileSketch mergeStored(Window window, DeviceParameters sensor, int channel, String field, String firstPeriod, String lastPeriod)
+			throws IOException {
+		QuantileSketch merged = new QuantileSketch();
+		if (directory == null) {
+			return merged;
+		}
+		String suffix = "-" + sensorKey(sensor, channel) + "-" + field + SKETCH_SUFFIX;
+		int periodLength = window.periodFormat.length();
+		List<Path> stored = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + suffix)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				String period = name.substring(0, name.length() - suffix.length());
+				if (period.length() == periodLength && period.compareTo(firstPeriod) >= 0 && period.compareTo(lastPeriod) <= 0) {
+					stored.add(file);
+				}
+			}
+		}
+		Collections.sort(stored);
+		for (Path file : stored) {
+			merged.merge(readSketch(file));
+		}
+		return merged;
+	}
+
+	static QuantileSketch readSketch(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			return QuantileSketch.readFrom(new DataInputStream(new BufferedInputStream(in)));
+		}
+	}
+
+	@SuppressWarnings("fallthrough")
+	private void startPeriod(WindowSketches window, long timeMillis) {
+		if (window.period != null) {
+			try {
+				storeSketches(window);
+			} catch (IOException e) {
+				log.error("Unable to store " + window.window + " sketches for " + window.period, e);
+			}
+		}
+		window.sketches.clear();
+
+		calendar.setTimeInMillis(timeMillis);
+		window.period = new SimpleDateFormat(window.window.periodFormat).format(calendar.getTime());
+		// Truncate to the start of the period, each case falling through to the
+		// next, then move on to the start of the next period
+		switch (window.window) {
+		case MONTH:
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+		case DAY:
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+		case HOUR:
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MILLISECOND, 0);
+		}
+		calendar.add(window.window.calendarField, 1);
+		window.periodEndMillis = calendar.getTimeInMillis();
+
+		try {
+			loadStoredSketches(window);
+		} catch (IOException e) {
+			log.error("Unable to read the " + window.window + " sketches stored for " + window.period, e);
+		}
+	}
+
+	/**
+	 * Carry on from the sketches already stored for the window's period, if it
+	 * was flushed before a restart
+	 */
+	private void loadStoredSketches(WindowSketches window) throws IOException {
+		if (directory == null) {
+			return;
+		}
+		String prefix = window.period + "-";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + SKETCH_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				window.sketches.put(name.substring(prefix.length(), name.length() - SKETCH_SUFFIX.length()), readSketch(file));
+			}
+		}
+	}
+
+	private void storeSketches(WindowSketches window) throws IOException {
+		if (directory == null || window.period == null) {
+			return;
+		}
+		// The sketches hold the whole period, anything stored before included
+		for (Map.Entry<String, QuantileSketch> entry : window.sketches.entrySet()) {
+			writeAtomically(directory.resolve(window.period + "-" + entry.getKey() + SKETCH_SUFFIX), entry.getValue().toByteArray());
+		}
+	}
+
+	/**
+	 * Write to a temporary file, make sure it's on disk, then rename it over the
+	 * target so readers only ever see a complete file, and sync the directory so
+	 * the rename survives a crash too.
+	 */
+	private static void writeAtomically(Path file, byte[] contents) throws IOException {
+		Path partial = file.resolveSibling(file.getFileName() + ".part");
+		try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(contents);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		try (FileChannel parent = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+			parent.force(true);
+		} catch (IOException e) {
+			// Not every platform can open or sync a directory, Windows for one
+		}
+	}
+
+	private static String sensorKey(DeviceParameters sensor, int channel) {
+		return channel < 0 ? sensor.name() : sensor.name() + channel;
+	}
+
 	
 	/**
 	 *  TODO Add this library so it can be enabled to store historical data and calculate stored-data based information like :
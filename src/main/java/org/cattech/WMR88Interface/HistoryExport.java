@@ -0,0 +1,350 @@
+package org.cattech.WMR88Interface;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Streams the history kept by HistoryStore out as CSV or as a columnar binary
+ * file, without ever holding more than one read buffer (and for the columnar
+ * format one row group) in memory.
+ *
+ * Filters are applied while scanning : day files outside the time range are
+ * never opened, the start of the range is found by binary search within a
+ * file, and records for unwanted sensors or channels are skipped before their
+ * values are read.
+ *
+ * Every output row has the columns Timestamp, Type and Channel, followed by
+ * the selected fields of all selected sensors; fields that don't belong to the
+ * row's sensor are left empty (NaN in the columnar format).
+ *
+ * The columnar format is :
+ *
+ * <pre>
+ *     "WMRC" int version, int column count, per column : UTF name, byte kind
+ *            (0 long, 1 sensor type as the station's sensor ID byte, 2 byte, 3 float)
+ *     per row group : int row count, then each column's values back to back
+ *     int 0 to mark the end
+ * </pre>
+ */
+public class HistoryExport {
+	Logger log = LogManager.getLogger(HistoryExport.class);
+
+	static final int COLUMNAR_VERSION = 2;
+	private static final int ROW_GROUP_ROWS = 4096;
+	private static final int READ_BUFFER_RECORDS = 4096;
+
+	private static final int KIND_LONG = 0;
+	private static final int KIND_SENSOR = 1;
+	private static final int KIND_BYTE = 2;
+	private static final int KIND_FLOAT = 3;
+
+	private final Path directory;
+
+	private Set<DeviceParameters> sensors = EnumSet.noneOf(DeviceParameters.class);
+	private final boolean[] channels = new boolean[256];
+	private boolean allChannels = true;
+	private Set<String> fieldFilter = Collections.emptySet();
+	private long fromMillis = Long.MIN_VALUE;
+	private long toMillis = Long.MAX_VALUE;
+
+	// Resolved projection, see project()
+	private List<String> columnNames;
+	// Per sensor ID, the output column of each stored value (-1 when not selected)
+	private int[][] columnOfValue;
+
+	public HistoryExport(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Only export these sensor types, all of them if none are given.
+	 */
+	public void setSensors(DeviceParameters... sensors) {
+		this.sensors = sensors.length == 0 ? EnumSet.noneOf(DeviceParameters.class) : EnumSet.copyOf(Arrays.asList(sensors));
+	}
+
+	/**
+	 * Only export readings from these channels (sensor numbers), all of them if
+	 * none are given.
+	 */
+	public void setChannels(int... channels) {
+		Arrays.fill(this.channels, false);
+		for (int channel : channels) {
+			this.channels[channel & 0xFF] = true;
+		}
+		allChannels = channels.length == 0;
+	}
+
+	/**
+	 * Only export these fields (as named in the JSON readings), all of them if none
+	 * are given.
+	 */
+	public void setFields(String... fields) {
+		this.fieldFilter = fields.length == 0 ? Collections.<String>emptySet() : new HashSet<>(Arrays.asList(fields));
+	}
+
+	/**
+	 * Only export readings received from fromMillis (inclusive) to toMillis
+	 * (exclusive).
+	 */
+	public void setTimeRange(long fromMillis, long toMillis) {
+		this.fromMillis = fromMillis;
+		this.toMillis = toMillis;
+	}
+
+	/**
+	 * @return the number of rows written
+	 */
+	public long writeCsv(Writer out) throws IOException {
+		project();
+
+		StringBuilder line = new StringBuilder("Timestamp,Type,Channel");
+		for (String column : columnNames) {
+			line.append(',').append(column);
+		}
+		out.write(line.append('\n').toString());
+
+		final String[] cells = new String[columnNames.size()];
+		return scan((time, sensor, channel, values) -> {
+			Arrays.fill(cells, "");
+			int[] columnOf = columnOfValue[sensor];
+			for (int i = 0; i < columnOf.length; i++) {
+				if (columnOf[i] >= 0 && !Float.isNaN(values[i])) {
+					cells[columnOf[i]] = Float.toString(values[i]);
+				}
+			}
+			line.setLength(0);
+			line.append(time).append(',').append(DeviceParameters.lookup(sensor).name()).append(',').append(channel);
+			for (String cell : cells) {
+				line.append(',').append(cell);
+			}
+			out.write(line.append('\n').toString());
+		});
+	}
+
+	/**
+	 * @return the number of rows written
+	 */
+	public long writeColumnar(OutputStream stream) throws IOException {
+		project();
+
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		out.writeBytes("WMRC");
+		out.writeInt(COLUMNAR_VERSION);
+		out.writeInt(3 + columnNames.size());
+		writeColumnHeader(out, "Timestamp", KIND_LONG);
+		writeColumnHeader(out, "Type", KIND_SENSOR);
+		writeColumnHeader(out, "Channel", KIND_BYTE);
+		for (String column : columnNames) {
+			writeColumnHeader(out, column, KIND_FLOAT);
+		}
+
+		final long[] times = new long[ROW_GROUP_ROWS];
+		final byte[] types = new byte[ROW_GROUP_ROWS];
+		final byte[] channelColumn = new byte[ROW_GROUP_ROWS];
+		final float[][] valueColumns = new float[columnNames.size()][ROW_GROUP_ROWS];
+		final int[] rows = { 0 };
+
+		long total = scan((time, sensor, channel, values) -> {
+			int row = rows[0]++;
+			times[row] = time;
+			types[row] = (byte) sensor;
+			channelColumn[row] = (byte) channel;
+			for (float[] column : valueColumns) {
+				column[row] = Float.NaN;
+			}
+			int[] columnOf = columnOfValue[sensor];
+			for (int i = 0; i < columnOf.length; i++) {
+				if (columnOf[i] >= 0) {
+					valueColumns[columnOf[i]][row] = values[i];
+				}
+			}
+			if (rows[0] == ROW_GROUP_ROWS) {
+				writeRowGroup(out, rows[0], times, types, channelColumn, valueColumns);
+				rows[0] = 0;
+			}
+		});
+		if (rows[0] > 0) {
+			writeRowGroup(out, rows[0], times, types, channelColumn, valueColumns);
+		}
+		out.writeInt(0);
+		out.flush();
+		return total;
+	}
+
+	private void writeColumnHeader(DataOutputStream out, String name, int kind) throws IOException {
+		out.writeUTF(name);
+		out.writeByte(kind);
+	}
+
+	private void writeRowGroup(DataOutputStream out, int rows, long[] times, byte[] types, byte[] channelColumn, float[][] valueColumns) throws IOException {
+		out.writeInt(rows);
+		for (int i = 0; i < rows; i++) {
+			out.writeLong(times[i]);
+		}
+		out.write(types, 0, rows);
+		out.write(channelColumn, 0, rows);
+		for (float[] column : valueColumns) {
+			for (int i = 0; i < rows; i++) {
+				out.writeFloat(column[i]);
+			}
+		}
+	}
+
+	/**
+	 * Work out the output columns and where each stored value goes.
+	 */
+	private void project() {
+		columnNames = new ArrayList<>();
+		columnOfValue = new int[256][];
+		for (DeviceParameters sensor : DeviceParameters.values()) {
+			String[] fields = HistoryStore.FIELDS.get(sensor);
+			if (fields == null || (!sensors.isEmpty() && !sensors.contains(sensor))) {
+				continue;
+			}
+			int[] columnOf = new int[fields.length];
+			boolean selected = false;
+			for (int i = 0; i < fields.length; i++) {
+				if (fieldFilter.isEmpty() || fieldFilter.contains(fields[i])) {
+					columnOf[i] = columnNames.size();
+					columnNames.add(fields[i]);
+					selected = true;
+				} else {
+					columnOf[i] = -1;
+				}
+			}
+			// A sensor with none of its fields selected isn't exported at all
+			if (selected) {
+				columnOfValue[sensor.id & 0xFF] = columnOf;
+			}
+		}
+	}
+
+	private interface RowHandler {
+		void row(long time, int sensor, int channel, float[] values) throws IOException;
+	}
+
+	private long scan(RowHandler handler) throws IOException {
+		long rows = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(HistoryStore.RECORD_BYTES * READ_BUFFER_RECORDS);
+		float[] values = new float[HistoryStore.VALUES_PER_RECORD];
+
+		for (Path partition : partitionsInRange()) {
+			try (FileChannel channel = FileChannel.open(partition, StandardOpenOption.READ)) {
+				long records = channel.size() / HistoryStore.RECORD_BYTES;
+				long position = firstRecordAtOrAfter(channel, records, fromMillis) * HistoryStore.RECORD_BYTES;
+				long end = records * HistoryStore.RECORD_BYTES;
+
+				boolean pastRange = false;
+				while (position < end && !pastRange) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - position));
+					readFully(channel, buffer, position);
+					buffer.flip();
+					position += buffer.limit();
+
+					while (buffer.remaining() >= HistoryStore.RECORD_BYTES) {
+						int start = buffer.position();
+						long time = buffer.getLong();
+						if (time >= toMillis) {
+							pastRange = true;
+							break;
+						}
+						int sensor = buffer.get() & 0xFF;
+						int sensorChannel = buffer.get() & 0xFF;
+						if (columnOfValue[sensor] == null || !(allChannels || channels[sensorChannel])) {
+							buffer.position(start + HistoryStore.RECORD_BYTES);
+							continue;
+						}
+						for (int i = 0; i < values.length; i++) {
+							values[i] = buffer.getFloat();
+						}
+						handler.row(time, sensor, sensorChannel, values);
+						rows++;
+					}
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Day files that can hold readings in the time range, oldest first.
+	 */
+	private List<Path> partitionsInRange() throws IOException {
+		List<Path> partitions = new ArrayList<>();
+		SimpleDateFormat dayFormat = new SimpleDateFormat("yyyyMMdd");
+		dayFormat.setLenient(false);
+		Calendar calendar = Calendar.getInstance();
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "????????" + HistoryStore.PARTITION_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				long dayStart;
+				try {
+					dayStart = dayFormat.parse(name.substring(0, 8)).getTime();
+				} catch (ParseException e) {
+					log.debug("Skipping " + file + ", not a day file");
+					continue;
+				}
+				calendar.setTimeInMillis(dayStart);
+				calendar.add(Calendar.DAY_OF_MONTH, 1);
+				if (dayStart < toMillis && calendar.getTimeInMillis() > fromMillis) {
+					partitions.add(file);
+				}
+			}
+		}
+		Collections.sort(partitions);
+		return partitions;
+	}
+
+	/**
+	 * Binary search a day file for the first record received at or after the
+	 * given time, relying on records being stored in the order received.
+	 */
+	private long firstRecordAtOrAfter(FileChannel channel, long records, long timeMillis) throws IOException {
+		ByteBuffer time = ByteBuffer.allocate(8);
+		long low = 0;
+		long high = records;
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			time.clear();
+			readFully(channel, time, mid * HistoryStore.RECORD_BYTES);
+			if (time.getLong(0) < timeMillis) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long start = position - buffer.position();
+		while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+			continue;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package org.cattech.WMR88Interface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.EnumMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * Callback that keeps the history of numeric readings on disk, one file per
+ * day named YYYYMMDD.wmr, replacing the YYYYMMDD.DAT files of the original
+ * server.
+ *
+ * Each file holds fixed size records in the order they were received :
+ *
+ * <pre>
+ *     long     time received (ms since epoch)
+ *     byte     sensor type (the station's sensor ID, e.g. 0x42)
+ *     byte     channel (sensor number, 0 for sensors that don't have one)
+ *     float[4] values of the sensor's FIELDS, NaN when not reported
+ * </pre>
+ *
+ * A partly written record left by a crash is cut off when the day's file is
+ * reopened. HistoryExport reads the files back.
+ */
+public class HistoryStore implements WMR88Callback {
+	Logger log = LogManager.getLogger(HistoryStore.class);
+
+	static final String PARTITION_SUFFIX = ".wmr";
+	static final int VALUES_PER_RECORD = 4;
+	static final int RECORD_BYTES = 8 + 1 + 1 + 4 * VALUES_PER_RECORD;
+
+	/** Fields stored for each sensor type, in record order */
+	static final EnumMap<DeviceParameters, String[]> FIELDS = new EnumMap<>(DeviceParameters.class);
+	static {
+		FIELDS.put(DeviceParameters.Thermohygrometer, new String[] { "Temperature", "DewPoint", "Humidity", "HeatIndex" });
+		FIELDS.put(DeviceParameters.Anemometer, new String[] { "WindVectorDegrees", "WindGust", "WindAverage", "WindChill" });
+		FIELDS.put(DeviceParameters.Barometer, new String[] { "pressureAbsolute", "pressureRelative" });
+		FIELDS.put(DeviceParameters.Rainfall, new String[] { "RainfallRate", "RainfallHourly", "RainfallDaily", "RainfallSinceReset" });
+		FIELDS.put(DeviceParameters.UV, new String[] { "UV_Index" });
+	}
+
+	// Write out buffered records at least this often
+	private static final long FLUSH_INTERVAL_MS = 1000;
+
+	private final Path directory;
+	private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * 256);
+	private final Calendar calendar = Calendar.getInstance();
+
+	private FileChannel partition;
+	private long partitionEndMillis;
+	private long lastFlushMillis;
+
+	public HistoryStore(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public void receiveData(String jsonData) {
+		record(System.currentTimeMillis(), jsonData);
+	}
+
+	/**
+	 * Store a reading as if it was received at the given time, for replaying old
+	 * readings into the history. Times must not go backwards.
+	 */
+	public synchronized void record(long timeMillis, String jsonData) {
+		JSONObject reading = new JSONObject(jsonData);
+		if (reading.has("Error") || !reading.has("Type")) {
+			return;
+		}
+		DeviceParameters sensor;
+		try {
+			sensor = DeviceParameters.valueOf(reading.getString("Type"));
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		String[] fields = FIELDS.get(sensor);
+		if (fields == null) {
+			return;
+		}
+
+		try {
+			if (timeMillis >= partitionEndMillis || partition == null) {
+				openPartition(timeMillis);
+			}
+
+			buffer.putLong(timeMillis);
+			buffer.put(sensor.id);
+			buffer.put((byte) reading.optInt("SensorNumber", 0));
+			for (int i = 0; i < VALUES_PER_RECORD; i++) {
+				buffer.putFloat(i < fields.length ? (float) WMR88InterfaceThread.decimalValue(reading, fields[i]) : Float.NaN);
+			}
+
+			if (!buffer.hasRemaining() || timeMillis - lastFlushMillis >= FLUSH_INTERVAL_MS) {
+				flush();
+				lastFlushMillis = timeMillis;
+			}
+		} catch (IOException e) {
+			log.error("Unable to store reading " + jsonData, e);
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		if (partition == null) {
+			return;
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			partition.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	public synchronized void close() throws IOException {
+		if (partition != null) {
+			flush();
+			partition.close();
+			partition = null;
+		}
+	}
+
+	private void openPartition(long timeMillis) throws IOException {
+		close();
+
+		calendar.setTimeInMillis(timeMillis);
+		Path file = directory.resolve(partitionName(calendar.getTime()));
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.DAY_OF_MONTH, 1);
+		partitionEndMillis = calendar.getTimeInMillis();
+
+		partition = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		long size = partition.size();
+		if (size % RECORD_BYTES != 0) {
+			log.warn("Discarding partly written record at the end of " + file);
+			partition.truncate(size - size % RECORD_BYTES);
+		}
+		partition.position(partition.size());
+	}
+
+	static String partitionName(Date day) {
+		return new SimpleDateFormat("yyyyMMdd").format(day) + PARTITION_SUFFIX;
+	}
+}
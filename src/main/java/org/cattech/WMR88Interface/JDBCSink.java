@@ -0,0 +1,444 @@
+package org.cattech.WMR88Interface;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Callback that stores readings in a SQL database, one table per sensor type.
+ *
+ * Any JDBC driver will do, the schema only uses types that embedded databases
+ * such as H2 and SQLite understand. Rows are written by the sink's own thread
+ * with batched prepared statements, and committed together once enough rows
+ * are waiting or the oldest has waited long enough, so slow storage (SD cards)
+ * sees a few large transactions instead of one per reading.
+ *
+ * A batch that fails to commit is rolled back and tried again with the next
+ * commit, and dropped once it has failed COMMIT_ATTEMPTS times. The rows
+ * dropped, along with readings dropped while the database was behind, are
+ * counted by getDroppedRows.
+ */
+public class JDBCSink implements WMR88Callback {
+	Logger log = LogManager.getLogger(JDBCSink.class);
+
+	static final int COMMIT_ATTEMPTS = 3;
+
+	private enum ColumnType {
+		TIMESTAMP("BIGINT", Types.BIGINT), INTEGER("INTEGER", Types.INTEGER), DECIMAL("DOUBLE", Types.DOUBLE), TEXT("VARCHAR(32)", Types.VARCHAR);
+
+		final String sql;
+		final int jdbcType;
+
+		ColumnType(String sql, int jdbcType) {
+			this.sql = sql;
+			this.jdbcType = jdbcType;
+		}
+	}
+
+	private static class Column {
+		final String name;
+		final String field;
+		final ColumnType type;
+
+		Column(String name, String field, ColumnType type) {
+			this.name = name;
+			this.field = field;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Table layout per sensor type, every table also starts with the time the
+	 * reading was received.
+	 */
+	private enum Table {
+		Thermohygrometer("wmr88_thermohygrometer", new Column("sensor", "SensorNumber", ColumnType.INTEGER), new Column("temperature", "Temperature", ColumnType.DECIMAL),
+				new Column("dewpoint", "DewPoint", ColumnType.DECIMAL), new Column("humidity", "Humidity", ColumnType.INTEGER),
+				new Column("heat_index", "HeatIndex", ColumnType.DECIMAL), new Column("temperature_trend", "TemperatureTrend", ColumnType.TEXT),
+				new Column("humidity_trend", "HumidityTrend", ColumnType.TEXT), new Column("battery", "Battery", ColumnType.TEXT)),
+		Anemometer("wmr88_anemometer", new Column("wind_degrees", "WindVectorDegrees", ColumnType.INTEGER), new Column("wind_direction", "WindVectorDescription", ColumnType.TEXT),
+				new Column("wind_gust", "WindGust", ColumnType.DECIMAL), new Column("wind_average", "WindAverage", ColumnType.DECIMAL),
+				new Column("wind_chill", "WindChill", ColumnType.DECIMAL), new Column("battery", "Battery", ColumnType.TEXT)),
+		Barometer("wmr88_barometer", new Column("pressure_absolute", "pressureAbsolute", ColumnType.INTEGER),
+				new Column("pressure_relative", "pressureRelative", ColumnType.INTEGER), new Column("forecast", "weatherForcast", ColumnType.TEXT),
+				new Column("previous", "weatherPrevious", ColumnType.TEXT)),
+		Rainfall("wmr88_rainfall", new Column("rate", "RainfallRate", ColumnType.DECIMAL), new Column("hourly", "RainfallHourly", ColumnType.DECIMAL),
+				new Column("daily", "RainfallDaily", ColumnType.DECIMAL), new Column("since_reset", "RainfallSinceReset", ColumnType.DECIMAL),
+				new Column("reset_time", "Timestamp", ColumnType.TIMESTAMP), new Column("battery", "Battery", ColumnType.TEXT)),
+		UV("wmr88_uv", new Column("uv_index", "UV_Index", ColumnType.INTEGER), new Column("battery", "Battery", ColumnType.TEXT)),
+		Clock("wmr88_clock", new Column("station_time", "Timestamp", ColumnType.TIMESTAMP), new Column("powered", "Powered", ColumnType.TEXT),
+				new Column("battery", "Battery", ColumnType.TEXT), new Column("rf_sync", "RFSync", ColumnType.TEXT), new Column("rf_signal", "RFSignal", ColumnType.TEXT)),
+		;
+
+		final String tableName;
+		final Column[] columns;
+
+		Table(String tableName, Column... columns) {
+			this.tableName = tableName;
+			this.columns = columns;
+		}
+
+		String createSql() {
+			StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(tableName).append(" (received BIGINT NOT NULL");
+			for (Column column : columns) {
+				sql.append(", ").append(column.name).append(' ').append(column.type.sql);
+			}
+			return sql.append(')').toString();
+		}
+
+		String insertSql() {
+			StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName).append(" (received");
+			StringBuilder values = new StringBuilder(") VALUES (?");
+			for (Column column : columns) {
+				sql.append(", ").append(column.name);
+				values.append(", ?");
+			}
+			return sql.append(values).append(')').toString();
+		}
+	}
+
+	/** A reading waiting to be written, stamped with when it arrived */
+	private static class Pending {
+		final long received;
+		final String jsonData;
+
+		Pending(long received, String jsonData) {
+			this.received = received;
+			this.jsonData = jsonData;
+		}
+	}
+
+	private final String jdbcUrl;
+	private final int batchSize;
+	private final long commitIntervalMs;
+	private final RingBuffer<Pending> queue;
+
+	private Connection connection;
+	private final EnumMap<Table, PreparedStatement> inserts = new EnumMap<>(Table.class);
+	private final EnumMap<Table, Integer> batchedRows = new EnumMap<>(Table.class);
+
+	// The readings in the batches, kept until they are committed in case the
+	// commit fails and they have to be added again
+	private final List<Pending> batchedReadings = new ArrayList<>();
+	private int failedCommits;
+	// Set while adding a failed batch again, its unreadable values were already counted
+	private boolean retrying;
+
+	private volatile boolean running;
+	private Thread thread;
+	private long droppedReadings;
+	private long skippedReadings;
+	private final AtomicLong rowsWritten = new AtomicLong();
+	private final AtomicLong failedRows = new AtomicLong();
+
+	/**
+	 * @param jdbcUrl          database to write to, for example
+	 *                         jdbc:h2:/var/lib/wmr88/readings or
+	 *                         jdbc:sqlite:/var/lib/wmr88/readings.db
+	 * @param batchSize        commit once this many rows are waiting
+	 * @param commitIntervalMs commit once the oldest waiting row is this old
+	 */
+	public JDBCSink(String jdbcUrl, int batchSize, long commitIntervalMs) {
+		this.jdbcUrl = jdbcUrl;
+		this.batchSize = batchSize;
+		this.commitIntervalMs = commitIntervalMs;
+		this.queue = new RingBuffer<>(Math.max(8192, batchSize * 4));
+	}
+
+	public JDBCSink(String jdbcUrl) {
+		this(jdbcUrl, 500, 5000);
+	}
+
+	/**
+	 * Connect, create any missing tables and start the writer thread.
+	 */
+	public void start() throws SQLException {
+		connection = DriverManager.getConnection(jdbcUrl);
+		try {
+			connection.setAutoCommit(false);
+			try (Statement statement = connection.createStatement()) {
+				for (Table table : Table.values()) {
+					statement.execute(table.createSql());
+				}
+			}
+			connection.commit();
+			for (Table table : Table.values()) {
+				inserts.put(table, connection.prepareStatement(table.insertSql()));
+				batchedRows.put(table, 0);
+			}
+		} catch (SQLException | RuntimeException e) {
+			// Also closes any statements already prepared
+			inserts.clear();
+			try {
+				connection.close();
+			} catch (SQLException closeError) {
+				e.addSuppressed(closeError);
+			}
+			connection = null;
+			throw e;
+		}
+
+		running = true;
+		thread = new Thread(this::writeReadings, "WMR88 JDBC Sink");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Write and commit everything already received, then disconnect.
+	 */
+	public void close() {
+		running = false;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+		try {
+			if (connection != null) {
+				connection.close();
+			}
+		} catch (SQLException e) {
+			log.error("Error closing database connection", e);
+		}
+	}
+
+	public long getRowsWritten() {
+		return rowsWritten.get();
+	}
+
+	/**
+	 * @return readings dropped because the database was behind, and rows dropped
+	 *         because their batch couldn't be committed
+	 */
+	public synchronized long getDroppedRows() {
+		return droppedReadings + failedRows.get();
+	}
+
+	/**
+	 * Synchronized, as the queue only takes one producer at a time and several
+	 * interface threads may share the sink.
+	 */
+	@Override
+	public synchronized void receiveData(String jsonData) {
+		if (!queue.offer(new Pending(System.currentTimeMillis(), jsonData))) {
+			droppedReadings++;
+			if ((droppedReadings & (droppedReadings - 1)) == 0) {
+				log.warn("Database is behind, dropped reading (" + droppedReadings + " total)");
+			}
+		}
+	}
+
+	private void writeReadings() {
+		List<Pending> batch = new ArrayList<>(batchSize);
+		// When the waiting rows are due a commit
+		long commitDue = 0;
+
+		while (running || !queue.isEmpty()) {
+			if (queue.drainTo(batch, batchSize) == 0) {
+				// Sleep until a reading arrives or the waiting rows are due a commit
+				long waitNanos = PipelineStage.IDLE_WAIT_NANOS;
+				if (!batchedReadings.isEmpty()) {
+					waitNanos = TimeUnit.MILLISECONDS.toNanos(commitDue - System.currentTimeMillis());
+				}
+				if (waitNanos > 0) {
+					queue.await(waitNanos);
+				}
+			}
+			for (Pending pending : batch) {
+				if (add(pending) && batchedReadings.size() == 1) {
+					commitDue = pending.received + commitIntervalMs;
+				}
+			}
+			batch.clear();
+
+			// A full batch waits for its retry like any other once a commit has failed
+			long now = System.currentTimeMillis();
+			if (!batchedReadings.isEmpty() && (now >= commitDue || (batchedReadings.size() >= batchSize && failedCommits == 0))) {
+				if (!commit()) {
+					commitDue = now + commitIntervalMs;
+				}
+			}
+		}
+		while (!batchedReadings.isEmpty() && !commit()) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(commitIntervalMs));
+		}
+	}
+
+	/**
+	 * Add a reading to its table's batch and keep it until the batch is committed.
+	 *
+	 * @return true if the reading was added
+	 */
+	private boolean add(Pending pending) {
+		boolean added;
+		try {
+			added = addRow(pending);
+		} catch (RuntimeException e) {
+			// Such as a reading that isn't valid JSON, which mustn't end the writer
+			added = false;
+			skipped("Unable to store reading " + pending.jsonData, e);
+		}
+		if (added) {
+			batchedReadings.add(pending);
+		}
+		return added;
+	}
+
+	/**
+	 * @return true if the reading was added to a batch
+	 */
+	private boolean addRow(Pending pending) {
+		JSONObject reading = new JSONObject(pending.jsonData);
+		if (reading.has("Error") || !reading.has("Type")) {
+			return false;
+		}
+		Table table;
+		try {
+			table = Table.valueOf(reading.getString("Type"));
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+
+		PreparedStatement insert = inserts.get(table);
+		try {
+			insert.setLong(1, pending.received);
+			for (int i = 0; i < table.columns.length; i++) {
+				setColumn(insert, i + 2, table.columns[i], reading);
+			}
+			insert.addBatch();
+			batchedRows.put(table, batchedRows.get(table) + 1);
+			return true;
+		} catch (SQLException e) {
+			log.error("Unable to add " + table + " reading to batch : " + pending.jsonData, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Set a column from the reading, or to null if the reading doesn't have the
+	 * field or its value can't be read.
+	 */
+	private void setColumn(PreparedStatement insert, int index, Column column, JSONObject reading) throws SQLException {
+		if (!reading.has(column.field)) {
+			insert.setNull(index, column.type.jdbcType);
+			return;
+		}
+		try {
+			switch (column.type) {
+			case TIMESTAMP:
+				insert.setLong(index, reading.getLong(column.field));
+				break;
+			case INTEGER:
+				insert.setInt(index, reading.getInt(column.field));
+				break;
+			case DECIMAL:
+				insert.setDouble(index, WMR88InterfaceThread.decimalValue(reading.get(column.field)));
+				break;
+			case TEXT:
+				insert.setString(index, reading.get(column.field).toString());
+				break;
+			}
+		} catch (JSONException | NumberFormatException e) {
+			insert.setNull(index, column.type.jdbcType);
+			skipped("Unable to store " + column.field + " of reading " + reading, e);
+		}
+	}
+
+	private void skipped(String message, Exception e) {
+		if (retrying) {
+			return;
+		}
+		skippedReadings++;
+		// Only log at powers of two so a stream of bad readings doesn't flood the log
+		if ((skippedReadings & (skippedReadings - 1)) == 0) {
+			log.error(message + " (" + skippedReadings + " values or readings skipped in total)", e);
+		}
+	}
+
+	/**
+	 * Write and commit the batches. If that fails they are rolled back and,
+	 * unless they have failed too often, added again for the next commit.
+	 *
+	 * @return false if the readings are still waiting to be committed
+	 */
+	private boolean commit() {
+		int rows = batchedReadings.size();
+		try {
+			for (Table table : Table.values()) {
+				if (batchedRows.get(table) > 0) {
+					inserts.get(table).executeBatch();
+				}
+			}
+			connection.commit();
+			rowsWritten.addAndGet(rows);
+			log.debug("Committed {} readings", rows);
+			for (Table table : Table.values()) {
+				batchedRows.put(table, 0);
+			}
+			batchedReadings.clear();
+			failedCommits = 0;
+			return true;
+		} catch (SQLException e) {
+			failedCommits++;
+			try {
+				connection.rollback();
+			} catch (SQLException rollbackError) {
+				log.error("Rollback failed", rollbackError);
+			}
+			clearBatches();
+			if (failedCommits >= COMMIT_ATTEMPTS) {
+				failedRows.addAndGet(rows);
+				log.error("Unable to write " + rows + " readings to the database, dropped them after " + failedCommits + " attempts", e);
+				batchedReadings.clear();
+				failedCommits = 0;
+				return true;
+			}
+			log.warn("Unable to write " + rows + " readings to the database, will try again : " + e.getMessage());
+			List<Pending> failed = new ArrayList<>(batchedReadings);
+			batchedReadings.clear();
+			retrying = true;
+			try {
+				for (Pending pending : failed) {
+					add(pending);
+				}
+			} finally {
+				retrying = false;
+			}
+			// Any that couldn't be added again are lost too
+			failedRows.addAndGet(failed.size() - batchedReadings.size());
+			return batchedReadings.isEmpty();
+		}
+	}
+
+	private void clearBatches() {
+		for (Table table : Table.values()) {
+			if (batchedRows.get(table) > 0) {
+				try {
+					inserts.get(table).clearBatch();
+				} catch (SQLException e) {
+					log.error("Unable to clear " + table + " batch", e);
+				}
+			}
+			batchedRows.put(table, 0);
+		}
+	}
+}
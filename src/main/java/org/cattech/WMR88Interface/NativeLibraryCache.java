@@ -0,0 +1,145 @@
+package org.cattech.WMR88Interface;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Loads the hidapi native library from a cache directory instead of extracting
+ * it from the jar to a new temporary file on every start, as
+ * ClassPathLibraryLoader does.
+ *
+ * Cached copies are named after the CRC and size of the library in the jar,
+ * which the jar's index already holds, so checking the cache doesn't need to
+ * read the library at all. A new hidapi jar gives a new name and the library
+ * is extracted again.
+ *
+ * The cache directory is ~/.cache/wmr88 unless the wmr88.nativeCacheDir
+ * system property says otherwise.
+ */
+public class NativeLibraryCache {
+	static Logger log = LogManager.getLogger(NativeLibraryCache.class);
+
+	// Same libraries, in the same order, as ClassPathLibraryLoader tries them
+	private static final String[] HID_LIB_NAMES = { "/native/linux/libhidapi-jni-64.so", "/native/linux/libhidapi-jni-32.so", "/native/mac/libhidapi-jni-64.jnilib",
+			"/native/mac/libhidapi-jni-32.jnilib", "/native/win/hidapi-jni-64.dll", "/native/win/hidapi-jni-32.dll" };
+
+	private static boolean loaded;
+
+	private NativeLibraryCache() {
+	}
+
+	/**
+	 * Load the library for this platform, falling back to ClassPathLibraryLoader
+	 * if no cached copy can be used.
+	 */
+	public static synchronized boolean loadNativeHIDLibrary() {
+		if (loaded) {
+			return true;
+		}
+		Path cacheDirectory = Paths.get(System.getProperty("wmr88.nativeCacheDir", System.getProperty("user.home") + "/.cache/wmr88"));
+
+		for (String name : librariesForPlatform(System.getProperty("os.name", ""), System.getProperty("os.arch", ""))) {
+			try {
+				URL resource = NativeLibraryCache.class.getResource(name);
+				if (resource != null) {
+					Path library = cachedCopy(cacheDirectory, resource);
+					System.load(library.toString());
+					loaded = true;
+					return true;
+				}
+			} catch (IOException | UnsatisfiedLinkError e) {
+				log.debug("Unable to load cached " + name + " : " + e);
+			}
+		}
+
+		log.warn("No usable cached hidapi library in " + cacheDirectory + ", extracting to a temporary file");
+		loaded = com.codeminders.hidapi.ClassPathLibraryLoader.loadNativeHIDLibrary();
+		return loaded;
+	}
+
+	/**
+	 * The libraries to try on a platform, as given by the os.name and os.arch
+	 * system properties, those that match its architecture first.
+	 */
+	public static List<String> librariesForPlatform(String osName, String osArch) {
+		String os = osName.toLowerCase(Locale.ROOT);
+		String osDirectory = os.contains("win") ? "/win/" : (os.contains("mac") ? "/mac/" : "/linux/");
+		String bits = osArch.contains("64") ? "-64." : "-32.";
+
+		List<String> ordered = new ArrayList<>();
+		for (String name : HID_LIB_NAMES) {
+			if (name.contains(osDirectory)) {
+				if (name.contains(bits)) {
+					ordered.add(0, name);
+				} else {
+					ordered.add(name);
+				}
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * @return the cached copy of the library, extracting it first if there isn't
+	 *         one
+	 */
+	public static Path cachedCopy(Path cacheDirectory, URL resource) throws IOException {
+		String path = resource.getPath();
+		String fileName = path.substring(path.lastIndexOf('/') + 1);
+		URLConnection connection = resource.openConnection();
+		String checksum = null;
+		if (connection instanceof JarURLConnection) {
+			ZipEntry entry = ((JarURLConnection) connection).getJarEntry();
+			if (entry.getCrc() != -1) {
+				checksum = String.format("%08x-%d", entry.getCrc(), entry.getSize());
+			}
+		}
+		if (checksum == null) {
+			checksum = checksumOf(resource);
+		}
+
+		Path cached = cacheDirectory.resolve(checksum + "-" + fileName);
+		if (!Files.isRegularFile(cached)) {
+			Files.createDirectories(cacheDirectory);
+			// Extract under a temporary name so another process never loads half a file
+			Path partial = Files.createTempFile(cacheDirectory, fileName, ".part");
+			try (InputStream in = resource.openStream()) {
+				Files.copy(in, partial, StandardCopyOption.REPLACE_EXISTING);
+				Files.move(partial, cached, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(partial);
+			}
+			log.info("Cached hidapi library as " + cached);
+		}
+		return cached;
+	}
+
+	private static String checksumOf(URL resource) throws IOException {
+		CRC32 crc = new CRC32();
+		long size = 0;
+		byte[] buffer = new byte[8192];
+		try (InputStream in = resource.openStream()) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, read);
+				size += read;
+			}
+		}
+		return String.format("%08x-%d", crc.getValue(), size);
+	}
+}
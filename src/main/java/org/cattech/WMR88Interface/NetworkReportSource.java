@@ -0,0 +1,225 @@
+package org.cattech.WMR88Interface;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A station connected to a NetworkStationServer over TCP. The server's
+ * selector thread reads the connection and queues whole reports here, and one
+ * of the server's decoder stages decodes them, handing the readings and frames
+ * to the callbacks added here.
+ *
+ * As with a local station, each callback is called on its own thread, so a
+ * slow callback only holds up itself and not the other stations sharing the
+ * decoder. The callbacks' threads finish once the station has disconnected and
+ * its last reports are delivered.
+ */
+public class NetworkReportSource {
+	Logger log = LogManager.getLogger(NetworkReportSource.class);
+
+	static final int REPORT_BYTES = 9;
+	private static final int QUEUED_REPORTS = 1024;
+
+	private final NetworkStationServer server;
+	private final SocketChannel channel;
+	private final SocketAddress remoteAddress;
+	// Decodes the station's reports, never run as a thread
+	private final WMR88InterfaceThread stationInterface = new WMR88InterfaceThread();
+	// Reports from the selector thread to the decoder, and their arrays back again
+	private final RingBuffer<byte[]> reports = new RingBuffer<>(QUEUED_REPORTS);
+	private final RingBuffer<byte[]> freeReports = new RingBuffer<>(QUEUED_REPORTS);
+
+	// Only used by the selector thread
+	final ByteBuffer readBuffer = ByteBuffer.allocate(REPORT_BYTES * 64);
+	// Commands waiting to be sent, guarded by itself
+	final ByteBuffer writeBuffer = ByteBuffer.allocate(REPORT_BYTES * 16);
+	// The decoder stage the station's reports are decoded on, and whether the
+	// station is waiting in its queue
+	final PipelineStage<NetworkReportSource> decoder;
+	final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private final AtomicBoolean disconnected = new AtomicBoolean();
+	// Set by the selector thread once it has stopped reading the connection, so
+	// the reports queued by then are the last
+	private final AtomicBoolean readingStopped = new AtomicBoolean();
+	private long droppedReports;
+
+	NetworkReportSource(NetworkStationServer server, SocketChannel channel, PipelineStage<NetworkReportSource> decoder) throws IOException {
+		this.server = server;
+		this.channel = channel;
+		this.remoteAddress = channel.getRemoteAddress();
+		this.decoder = decoder;
+		stationInterface.setCommandWriter(this::write);
+		// Callbacks get their threads as they are added
+		stationInterface.startSinkStages();
+	}
+
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	public boolean isConnected() {
+		return !disconnected.get();
+	}
+
+	/**
+	 * Register a callback for the station's readings, see
+	 * WMR88InterfaceThread.addCallback.
+	 */
+	public void addCallback(WMR88Callback callback) {
+		stationInterface.addCallback(callback);
+	}
+
+	/**
+	 * Register a callback for the readings the subscription wants.
+	 */
+	public void addCallback(WMR88Callback callback, Subscription subscription) {
+		stationInterface.addCallback(callback, subscription);
+	}
+
+	public void removeCallback(WMR88Callback callback) {
+		stationInterface.removeCallback(callback);
+	}
+
+	/**
+	 * Register a callback for the station's raw frames, see
+	 * WMR88InterfaceThread.addFrameCallback.
+	 */
+	public void addFrameCallback(WMR88FrameCallback callback) {
+		stationInterface.addFrameCallback(callback);
+	}
+
+	public void addFrameCallback(WMR88FrameCallback callback, Subscription subscription) {
+		stationInterface.addFrameCallback(callback, subscription);
+	}
+
+	public void removeFrameCallback(WMR88FrameCallback callback) {
+		stationInterface.removeFrameCallback(callback);
+	}
+
+	public void setUseMetric(boolean useMetric) {
+		stationInterface.setUseMetric(useMetric);
+	}
+
+	public void setTimezone(TimeZone tz) {
+		stationInterface.setTimezone(tz);
+	}
+
+	public void setReturnInvalidFrames(boolean returnInvalidFrames) {
+		stationInterface.setReturnInvalidFrames(returnInvalidFrames);
+	}
+
+	/**
+	 * Queue a command for the selector thread to send, padded to a full report.
+	 */
+	public void write(byte[] data) throws IOException {
+		if (disconnected.get()) {
+			throw new IOException("Station " + remoteAddress + " disconnected");
+		}
+		synchronized (writeBuffer) {
+			if (writeBuffer.remaining() < REPORT_BYTES) {
+				throw new IOException("Station " + remoteAddress + " is not accepting commands");
+			}
+			int count = Math.min(data.length, REPORT_BYTES);
+			writeBuffer.put(data, 0, count);
+			for (int i = count; i < REPORT_BYTES; i++) {
+				writeBuffer.put((byte) 0);
+			}
+		}
+		server.requestWrite(this);
+	}
+
+	/**
+	 * Disconnect the station, what it already sent is still delivered.
+	 */
+	public void close() {
+		disconnected();
+		// The selector thread closes the connection
+		server.requestWrite(this);
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Queue the whole reports in the read buffer, which must be flipped, and
+	 * compact it. Called on the selector thread.
+	 *
+	 * @return true if any reports were queued
+	 */
+	boolean queueReports() {
+		boolean queued = false;
+		while (readBuffer.remaining() >= REPORT_BYTES) {
+			byte[] report = freeReports.poll();
+			if (report == null) {
+				report = new byte[REPORT_BYTES];
+			}
+			readBuffer.get(report);
+			if (reports.offer(report)) {
+				queued = true;
+			} else {
+				droppedReports++;
+				// Only log at powers of two so a stalled decoder doesn't flood the log
+				if ((droppedReports & (droppedReports - 1)) == 0) {
+					log.warn("Decoder for " + remoteAddress + " is behind, dropped report (" + droppedReports + " total)");
+				}
+			}
+		}
+		readBuffer.compact();
+		return queued;
+	}
+
+	/**
+	 * Decode the queued reports and hand what they hold to the callbacks. Called
+	 * on the station's decoder stage.
+	 */
+	void decodeReports() {
+		// Cleared first, so reports queued from now on schedule the station again
+		scheduled.set(false);
+		// Checked before polling, as reports may still be queued until it is set
+		boolean last = readingStopped.get();
+		byte[] report;
+		while ((report = reports.poll()) != null) {
+			stationInterface.decodeReport(report);
+			freeReports.offer(report);
+		}
+		stationInterface.dispatchDecoded();
+		if (last) {
+			stopCallbacks();
+		}
+	}
+
+	/**
+	 * Deliver what the callbacks have queued and stop their threads.
+	 */
+	void stopCallbacks() {
+		stationInterface.stopSinkStages();
+	}
+
+	void requestDataIfQuiet() throws IOException {
+		stationInterface.requestDataIfQuiet();
+	}
+
+	void disconnected() {
+		if (disconnected.compareAndSet(false, true)) {
+			server.stationDisconnected();
+		}
+	}
+
+	/**
+	 * Called on the selector thread once it won't queue any more reports.
+	 *
+	 * @return true the first time
+	 */
+	boolean stopReading() {
+		return readingStopped.compareAndSet(false, true);
+	}
+}
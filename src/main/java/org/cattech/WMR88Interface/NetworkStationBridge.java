@@ -0,0 +1,153 @@
+package org.cattech.WMR88Interface;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Forwards a station's reports to a NetworkStationServer over TCP, and the
+ * server's commands back to the station, the job of the USB to network bridge
+ * at a remote site.
+ *
+ * Any report source can be bridged, so a StationSimulator bridged over
+ * loopback stands in for a remote station when testing. The bridge reconnects
+ * if the connection to the server is lost.
+ */
+public class NetworkStationBridge implements Runnable {
+	Logger log = LogManager.getLogger(NetworkStationBridge.class);
+
+	private static final int REPORT_BYTES = NetworkReportSource.REPORT_BYTES;
+	private static final int READ_TIMEOUT_MS = 1000;
+	private static final long RECONNECT_DELAY_MS = 5000;
+
+	private final WMR88ReportSource source;
+	private final InetSocketAddress serverAddress;
+
+	private volatile boolean running;
+	private volatile SocketChannel channel;
+	private volatile long reportsForwarded;
+
+	public NetworkStationBridge(WMR88ReportSource source, InetSocketAddress serverAddress) {
+		this.source = source;
+		this.serverAddress = serverAddress;
+	}
+
+	/**
+	 * Open the station, connect to the server and forward reports until stopped.
+	 */
+	@Override
+	public void run() {
+		running = true;
+		byte[] report = new byte[REPORT_BYTES];
+		ByteBuffer reportBuffer = ByteBuffer.wrap(report);
+		try {
+			source.open();
+			while (running) {
+				if (!connect()) {
+					sleep(RECONNECT_DELAY_MS);
+					continue;
+				}
+				Thread commandThread = new Thread(this::forwardCommands, "WMR88 Bridge Commands");
+				commandThread.setDaemon(true);
+				commandThread.start();
+				try {
+					while (running) {
+						if (source.readTimeout(report, READ_TIMEOUT_MS) <= 0) {
+							continue;
+						}
+						reportBuffer.clear();
+						while (reportBuffer.hasRemaining()) {
+							channel.write(reportBuffer);
+						}
+						reportsForwarded++;
+					}
+				} catch (IOException e) {
+					if (running) {
+						log.warn("Lost connection to " + serverAddress + " : " + e.getMessage());
+					}
+				}
+				closeChannel();
+				commandThread.join();
+			}
+		} catch (Throwable throwable) {
+			log.error("Bridge error: " + throwable);
+			throwable.printStackTrace();
+		} finally {
+			running = false;
+			closeChannel();
+			try {
+				source.close();
+			} catch (IOException e) {
+				log.error("Error closing report source", e);
+			}
+		}
+	}
+
+	public void stop() {
+		running = false;
+		closeChannel();
+	}
+
+	public long getReportsForwarded() {
+		return reportsForwarded;
+	}
+
+	private boolean connect() {
+		try {
+			channel = SocketChannel.open(serverAddress);
+			channel.socket().setTcpNoDelay(true);
+			log.info("Bridging station to " + serverAddress);
+			return true;
+		} catch (IOException e) {
+			log.warn("Unable to connect to " + serverAddress + ", retrying : " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Pass commands from the server on to the station until the connection
+	 * closes.
+	 */
+	private void forwardCommands() {
+		ByteBuffer command = ByteBuffer.allocate(REPORT_BYTES);
+		try {
+			while (true) {
+				if (channel.read(command) < 0) {
+					break;
+				}
+				if (!command.hasRemaining()) {
+					source.write(command.array());
+					command.clear();
+				}
+			}
+		} catch (IOException e) {
+			// Closed by the report forwarding, which logs why
+		}
+		// Make the report forwarding notice the server has gone
+		closeChannel();
+	}
+
+	private void closeChannel() {
+		SocketChannel current = channel;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				log.error("Error closing connection to " + serverAddress, e);
+			}
+		}
+	}
+
+	private void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package org.cattech.WMR88Interface;
+
+public interface NetworkStationListener {
+	/**
+	 * Called on the server's selector thread when a station connects, before any
+	 * of its reports are decoded, typically to add callbacks to the station. Must
+	 * not block.
+	 */
+	abstract void stationConnected(NetworkReportSource station);
+}
@@ -0,0 +1,340 @@
+package org.cattech.WMR88Interface;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Accepts connections from stations sending their USB reports over TCP, for
+ * example from a NetworkStationBridge at a remote site, and decodes them,
+ * handing each station to the listener as a NetworkReportSource to add
+ * callbacks to.
+ *
+ * However many stations there are, a single selector thread reads every
+ * connection and a few decoder stages, shared by the stations, decode what
+ * it reads. Callbacks still get a thread each, as with a local station. The stream in each direction is the station's 9 byte reports back
+ * to back, exactly as they are read from and written to the USB device.
+ */
+public class NetworkStationServer implements Runnable {
+	Logger log = LogManager.getLogger(NetworkStationServer.class);
+
+	// How often to look for stations that have gone quiet and ask them for data
+	private static final long REQUEST_CHECK_MS = 10_000;
+	// Stations waiting on each decoder, each station is only queued once at a time
+	private static final int DECODER_QUEUE_SIZE = 1024;
+	private static final int DECODER_BATCH_SIZE = 64;
+
+	/** Decodes the reports of the stations given to it, in the order they arrive */
+	private static class DecoderStage extends PipelineStage<NetworkReportSource> {
+		DecoderStage() {
+			super(DECODER_QUEUE_SIZE, DECODER_BATCH_SIZE);
+		}
+
+		@Override
+		void deliver(NetworkReportSource station) {
+			try {
+				station.decodeReports();
+			} catch (RuntimeException e) {
+				log.error("Unable to decode reports from " + station.getRemoteAddress(), e);
+			}
+		}
+	}
+
+	private final InetSocketAddress bindAddress;
+	private final NetworkStationListener listener;
+	// Sources with commands waiting or closed, handed to the selector thread
+	private final Queue<NetworkReportSource> pendingWrites = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger stationCount = new AtomicInteger();
+	// Only used by the selector thread
+	private final List<NetworkReportSource> scheduling = new ArrayList<>(1);
+
+	private int decoderCount = Math.min(4, Runtime.getRuntime().availableProcessors());
+	private DecoderStage[] decoders;
+	private int nextDecoder;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread selectorThread;
+	private volatile boolean running;
+
+	public NetworkStationServer(InetSocketAddress bindAddress, NetworkStationListener listener) {
+		this.bindAddress = bindAddress;
+		this.listener = listener;
+	}
+
+	public NetworkStationServer(int port, NetworkStationListener listener) {
+		this(new InetSocketAddress(port), listener);
+	}
+
+	/**
+	 * How many decoder threads to share between the stations, the smaller of 4 and
+	 * the number of processors unless set before starting.
+	 */
+	public void setDecoderThreads(int decoderCount) {
+		this.decoderCount = decoderCount;
+	}
+
+	/**
+	 * Bind the port and start the selector and decoder threads.
+	 */
+	public synchronized void start() throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(bindAddress);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		decoders = new DecoderStage[decoderCount];
+		for (int i = 0; i < decoders.length; i++) {
+			decoders[i] = new DecoderStage();
+			decoders[i].start("WMR88 Network Decoder " + i);
+		}
+
+		running = true;
+		selectorThread = new Thread(this, "WMR88 Network Server");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+		log.info("Listening for stations on " + serverChannel.getLocalAddress());
+	}
+
+	/**
+	 * Stop accepting stations and disconnect the ones connected, what was already
+	 * received from them is still decoded.
+	 */
+	public void stop() {
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Wait until the server has stopped and decoded everything it received.
+	 */
+	public void join() throws InterruptedException {
+		if (selectorThread != null) {
+			selectorThread.join();
+		}
+	}
+
+	/**
+	 * @return the port listened on, useful when binding port 0
+	 */
+	public int getLocalPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	public int getStationCount() {
+		return stationCount.get();
+	}
+
+	/**
+	 * @return the selector thread followed by the decoder threads, the stations'
+	 *         callback threads aren't included
+	 */
+	public synchronized List<Thread> getThreads() {
+		List<Thread> threads = new ArrayList<>();
+		if (selectorThread != null) {
+			threads.add(selectorThread);
+		}
+		if (decoders != null) {
+			for (DecoderStage decoder : decoders) {
+				Thread thread = decoder.getThread();
+				if (thread != null) {
+					threads.add(thread);
+				}
+			}
+		}
+		return threads;
+	}
+
+	@Override
+	public void run() {
+		long lastRequestCheck = System.currentTimeMillis();
+		try {
+			while (running) {
+				selector.select(REQUEST_CHECK_MS);
+				registerPendingWrites();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					NetworkReportSource station = (NetworkReportSource) key.attachment();
+					try {
+						if (key.isReadable()) {
+							read(key, station);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(key, station);
+						}
+					} catch (IOException e) {
+						// The station going away, often a reset rather than an orderly close
+						if (station.isConnected()) {
+							log.info("Station " + station.getRemoteAddress() + " disconnected : " + e.getMessage());
+						}
+						disconnect(key, station);
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastRequestCheck >= REQUEST_CHECK_MS) {
+					lastRequestCheck = now;
+					for (SelectionKey key : selector.keys()) {
+						if (key.isValid() && key.attachment() != null) {
+							requestDataIfQuiet((NetworkReportSource) key.attachment());
+						}
+					}
+				}
+			}
+		} catch (Throwable throwable) {
+			log.error("Network server error", throwable);
+		} finally {
+			running = false;
+			List<NetworkReportSource> stations = new ArrayList<>();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) {
+					stations.add((NetworkReportSource) key.attachment());
+					disconnect(key, (NetworkReportSource) key.attachment());
+				}
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				log.error("Error closing network server", e);
+			}
+			// Decodes what the stations already sent before the threads finish
+			for (DecoderStage decoder : decoders) {
+				decoder.stop();
+			}
+			// In case a decoder was too far behind to take a station's last reports
+			for (NetworkReportSource station : stations) {
+				station.stopCallbacks();
+			}
+		}
+	}
+
+	void requestWrite(NetworkReportSource station) {
+		pendingWrites.add(station);
+		selector.wakeup();
+	}
+
+	void stationDisconnected() {
+		stationCount.decrementAndGet();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		NetworkReportSource station = new NetworkReportSource(this, channel, decoders[nextDecoder]);
+		nextDecoder = (nextDecoder + 1) % decoders.length;
+		channel.register(selector, SelectionKey.OP_READ, station);
+		stationCount.incrementAndGet();
+		log.info("Station connected from " + station.getRemoteAddress());
+		try {
+			listener.stationConnected(station);
+		} catch (RuntimeException e) {
+			log.error("Station listener failed for " + station.getRemoteAddress(), e);
+		}
+		requestDataIfQuiet(station);
+	}
+
+	private void read(SelectionKey key, NetworkReportSource station) throws IOException {
+		if (station.getChannel().read(station.readBuffer) < 0) {
+			log.info("Station " + station.getRemoteAddress() + " disconnected");
+			disconnect(key, station);
+			return;
+		}
+		station.readBuffer.flip();
+		if (station.queueReports()) {
+			schedule(station);
+		}
+	}
+
+	/**
+	 * Queue the station on its decoder, unless it is already waiting there.
+	 */
+	private void schedule(NetworkReportSource station) {
+		if (station.scheduled.compareAndSet(false, true)) {
+			scheduling.add(station);
+			if (station.decoder.enqueue(scheduling) == 0) {
+				// The reports stay queued, for when the station sends more
+				station.scheduled.set(false);
+			}
+			scheduling.clear();
+		}
+	}
+
+	private void requestDataIfQuiet(NetworkReportSource station) {
+		try {
+			station.requestDataIfQuiet();
+		} catch (IOException e) {
+			log.warn("Unable to ask station " + station.getRemoteAddress() + " for data : " + e.getMessage());
+		}
+	}
+
+	private void write(SelectionKey key, NetworkReportSource station) throws IOException {
+		synchronized (station.writeBuffer) {
+			station.writeBuffer.flip();
+			station.getChannel().write(station.writeBuffer);
+			boolean done = !station.writeBuffer.hasRemaining();
+			station.writeBuffer.compact();
+			if (done) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	private void registerPendingWrites() {
+		NetworkReportSource station;
+		while ((station = pendingWrites.poll()) != null) {
+			SelectionKey key = station.getChannel().keyFor(selector);
+			if (key == null || !key.isValid()) {
+				continue;
+			}
+			if (station.isConnected()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			} else {
+				disconnect(key, station);
+			}
+		}
+	}
+
+	private void disconnect(SelectionKey key, NetworkReportSource station) {
+		key.cancel();
+		station.disconnected();
+		try {
+			station.getChannel().close();
+		} catch (IOException e) {
+			log.error("Error closing connection from " + station.getRemoteAddress(), e);
+		}
+		// Once more, to deliver the last reports and stop the station's callbacks
+		if (station.stopReading()) {
+			schedule(station);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package org.cattech.WMR88Interface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Last stage of the station pipeline, delivers items to a single consumer on
+ * its own thread so a slow consumer never holds up the decoder or the USB
+ * reader.
+ *
+ * Until the stage is started items are delivered directly on the caller's
+ * thread.
+ */
+abstract class PipelineStage<T> implements Runnable {
+	Logger log = LogManager.getLogger(PipelineStage.class);
+
+	// Longest an idle stage waits without being woken, producers and stop() wake
+	// it as soon as there is something to do
+	static final long IDLE_WAIT_NANOS = 1_000_000_000L;
+
+	private final RingBuffer<T> ring;
+	private final int batchSize;
+
+	private volatile boolean running;
+	// Set when the stage is cancelled, from then on items are discarded
+	private volatile boolean closed;
+	private volatile Thread thread;
+	private long dropped;
+
+	PipelineStage(int bufferSize, int batchSize) {
+		this.ring = new RingBuffer<>(bufferSize);
+		this.batchSize = batchSize;
+	}
+
+	void start(String name) {
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop accepting new work, deliver whatever is already queued and wait for the
+	 * stage thread to finish.
+	 */
+	void stop() {
+		running = false;
+		Thread current = thread;
+		if (current != null) {
+			LockSupport.unpark(current);
+			// A callback removing itself can't wait for its own thread
+			if (current != Thread.currentThread()) {
+				try {
+					current.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			thread = null;
+		}
+	}
+
+	/**
+	 * Stop the stage for good without delivering what is still queued, for a
+	 * callback that is no longer registered. Queued items, and any enqueued
+	 * afterwards, are discarded.
+	 */
+	void cancel() {
+		synchronized (this) {
+			closed = true;
+		}
+		stop();
+	}
+
+	String getName() {
+		Thread current = thread;
+		return current != null ? current.getName() : "direct";
+	}
+
+	/**
+	 * @return the stage's thread, null until started and once stopped
+	 */
+	Thread getThread() {
+		return thread;
+	}
+
+	/**
+	 * Queue items for the stage thread, or deliver them straight away if the stage
+	 * isn't started.
+	 *
+	 * @return how many of the items, from the first, were taken. The rest were
+	 *         dropped because the stage is behind.
+	 */
+	int enqueue(List<T> items) {
+		int accepted;
+		// Once cancel() has closed the stage nothing more may be queued, or it would
+		// never be discarded
+		synchronized (this) {
+			if (closed) {
+				return 0;
+			}
+			if (thread == null) {
+				for (T item : items) {
+					deliver(item);
+				}
+				return items.size();
+			}
+			accepted = ring.offerAll(items);
+		}
+		if (accepted < items.size()) {
+			long before = dropped;
+			dropped += items.size() - accepted;
+			// Only log each time the total passes a power of two so a stalled sink doesn't flood the log
+			if (Long.highestOneBit(before) != Long.highestOneBit(dropped)) {
+				log.warn("Sink " + getName() + " is behind, dropped " + (items.size() - accepted) + " items (" + dropped + " total)");
+			}
+		}
+		return accepted;
+	}
+
+	@Override
+	public void run() {
+		List<T> batch = new ArrayList<>(batchSize);
+		while ((running || !ring.isEmpty()) && !closed) {
+			if (ring.drainTo(batch, batchSize) == 0) {
+				ring.await(IDLE_WAIT_NANOS);
+				continue;
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				if (closed) {
+					discard(batch.get(i));
+				} else {
+					deliver(batch.get(i));
+				}
+			}
+			batch.clear();
+		}
+		if (closed) {
+			T item;
+			while ((item = ring.poll()) != null) {
+				discard(item);
+			}
+		}
+	}
+
+	abstract void deliver(T item);
+
+	/**
+	 * Dispose of an item a cancelled stage won't deliver.
+	 */
+	void discard(T item) {
+	}
+}
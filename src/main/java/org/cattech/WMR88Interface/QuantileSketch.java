@@ -0,0 +1,284 @@
+package org.cattech.WMR88Interface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Approximate quantiles (percentiles) of a stream of values in a fixed amount
+ * of memory, using the KLL sketch of Karnin, Lang and Liberty.
+ *
+ * Values are kept in levels of compactors. When a level fills it is sorted and
+ * every other value moves up a level with twice the weight, so the sketch
+ * holds a few hundred values however many are added. Sketches of the same
+ * values split any way can be merged, so hourly sketches can be combined into
+ * daily ones and daily ones into monthly ones, and they can be written out and
+ * read back with writeTo and readFrom.
+ *
+ * With the default k of 200 the rank error is around 1%, so a p99 estimate
+ * falls between the true p98 and the true p100. The count, minimum, maximum
+ * and mean are exact.
+ */
+public class QuantileSketch {
+	static final int FORMAT_VERSION = 1;
+	private static final int DEFAULT_K = 200;
+	// How much smaller each level below the top is
+	private static final double LEVEL_SHRINK = 2.0 / 3.0;
+
+	private final int k;
+	private final Random random = new Random(0x5EED);
+
+	private double[][] levels = new double[0][];
+	private int[] levelSizes = new int[0];
+	private int retained;
+	private int maxRetained;
+
+	private long count;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private double sum;
+
+	public QuantileSketch() {
+		this(DEFAULT_K);
+	}
+
+	/**
+	 * @param k accuracy, the rank error is roughly 1.7 / k
+	 */
+	public QuantileSketch(int k) {
+		if (k < 8) {
+			throw new IllegalArgumentException("k must be at least 8, was " + k);
+		}
+		this.k = k;
+		grow();
+	}
+
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		if (count == 0) {
+			min = value;
+			max = value;
+		} else {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		count++;
+		sum += value;
+
+		append(0, value);
+		if (retained >= maxRetained) {
+			compress();
+		}
+	}
+
+	/**
+	 * Add all the values summarised by another sketch to this one.
+	 */
+	public void merge(QuantileSketch other) {
+		if (other.count == 0) {
+			return;
+		}
+		while (levels.length < other.levels.length) {
+			grow();
+		}
+		for (int level = 0; level < other.levels.length; level++) {
+			for (int i = 0; i < other.levelSizes[level]; i++) {
+				append(level, other.levels[level][i]);
+			}
+		}
+		min = count == 0 ? other.min : Math.min(min, other.min);
+		max = count == 0 ? other.max : Math.max(max, other.max);
+		count += other.count;
+		sum += other.sum;
+		while (retained >= maxRetained) {
+			compress();
+		}
+	}
+
+	/**
+	 * @param quantile from 0 to 1, for example 0.95 for the 95th percentile
+	 * @return the estimated value at that quantile, NaN if nothing was added
+	 */
+	public double getQuantile(double quantile) {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		if (quantile <= 0) {
+			return min;
+		}
+		if (quantile >= 1) {
+			return max;
+		}
+
+		// Every retained value with its weight, sorted by value
+		double[] values = new double[retained];
+		long[] weights = new long[retained];
+		int n = 0;
+		long totalWeight = 0;
+		for (int level = 0; level < levels.length; level++) {
+			for (int i = 0; i < levelSizes[level]; i++) {
+				values[n] = levels[level][i];
+				weights[n++] = 1L << level;
+				totalWeight += 1L << level;
+			}
+		}
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+		double target = quantile * totalWeight;
+		long cumulative = 0;
+		for (int i : order) {
+			cumulative += weights[i];
+			if (cumulative >= target) {
+				return values[i];
+			}
+		}
+		return max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? Double.NaN : sum / count;
+	}
+
+	/**
+	 * @return how many values the sketch is holding
+	 */
+	public int getRetained() {
+		return retained;
+	}
+
+	/**
+	 * The format is "WMRQ", int version, int k, long count, double min, max and
+	 * sum, int level count, then per level an int size and that many doubles.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeBytes("WMRQ");
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(k);
+		out.writeLong(count);
+		out.writeDouble(min);
+		out.writeDouble(max);
+		out.writeDouble(sum);
+		out.writeInt(levels.length);
+		for (int level = 0; level < levels.length; level++) {
+			out.writeInt(levelSizes[level]);
+			for (int i = 0; i < levelSizes[level]; i++) {
+				out.writeDouble(levels[level][i]);
+			}
+		}
+	}
+
+	public static QuantileSketch readFrom(DataInput in) throws IOException {
+		byte[] magic = new byte[4];
+		in.readFully(magic);
+		if (!"WMRQ".equals(new String(magic, "US-ASCII"))) {
+			throw new IOException("Not a quantile sketch");
+		}
+		int version = in.readInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported quantile sketch version " + version);
+		}
+		QuantileSketch sketch = new QuantileSketch(in.readInt());
+		sketch.count = in.readLong();
+		sketch.min = in.readDouble();
+		sketch.max = in.readDouble();
+		sketch.sum = in.readDouble();
+		int levelCount = in.readInt();
+		while (sketch.levels.length < levelCount) {
+			sketch.grow();
+		}
+		for (int level = 0; level < levelCount; level++) {
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				sketch.append(level, in.readDouble());
+			}
+		}
+		return sketch;
+	}
+
+	public byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			writeTo(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			// Not possible writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static QuantileSketch fromByteArray(byte[] bytes) throws IOException {
+		return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	private int capacity(int level) {
+		int depth = levels.length - level - 1;
+		return (int) Math.ceil(Math.pow(LEVEL_SHRINK, depth) * k) + 1;
+	}
+
+	private void grow() {
+		levels = Arrays.copyOf(levels, levels.length + 1);
+		levelSizes = Arrays.copyOf(levelSizes, levelSizes.length + 1);
+		levels[levels.length - 1] = new double[16];
+		maxRetained = 0;
+		for (int level = 0; level < levels.length; level++) {
+			maxRetained += capacity(level);
+		}
+	}
+
+	private void append(int level, double value) {
+		if (levelSizes[level] == levels[level].length) {
+			levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+		}
+		levels[level][levelSizes[level]++] = value;
+		retained++;
+	}
+
+	/**
+	 * Compact the lowest full level into the one above it.
+	 */
+	private void compress() {
+		for (int level = 0; level < levels.length; level++) {
+			if (levelSizes[level] >= capacity(level)) {
+				if (level + 1 >= levels.length) {
+					grow();
+				}
+				double[] items = levels[level];
+				int size = levelSizes[level];
+				Arrays.sort(items, 0, size);
+				// With an odd number the lowest value stays behind
+				int keep = size % 2;
+				int offset = random.nextBoolean() ? 1 : 0;
+				for (int i = keep + offset; i < size; i += 2) {
+					append(level + 1, items[i]);
+				}
+				retained -= size - keep;
+				levelSizes[level] = keep;
+				return;
+			}
+		}
+	}
+}
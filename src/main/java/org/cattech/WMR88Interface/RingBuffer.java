@@ -0,0 +1,147 @@
+package org.cattech.WMR88Interface;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer / single-consumer ring used to hand batches between
+ * the stages of the station pipeline.
+ *
+ * The producer never blocks: when the ring is full offer() returns false and
+ * the caller decides what to do with the item (the pipeline stages count and
+ * drop it). Exactly one thread may offer and exactly one thread may drain.
+ * An idle consumer sleeps in await() until the producer adds something.
+ */
+public class RingBuffer<T> {
+	private final Object[] slots;
+	private final int mask;
+
+	// Next slot to read, only advanced by the consumer
+	private final AtomicLong head = new AtomicLong();
+	// Next slot to write, only advanced by the producer
+	private final AtomicLong tail = new AtomicLong();
+	// The consumer while it is waiting in await()
+	private volatile Thread waitingConsumer;
+
+	/**
+	 * @param capacity minimum number of items held, rounded up to a power of two
+	 */
+	public RingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Ring capacity must be at least 1, was " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		slots = new Object[size];
+		mask = size - 1;
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	/**
+	 * Add a single item, without blocking.
+	 *
+	 * @return false if the ring was full and the item was not added
+	 */
+	public boolean offer(T item) {
+		long t = tail.get();
+		if (t - head.get() >= slots.length) {
+			return false;
+		}
+		slots[(int) (t & mask)] = item;
+		publish(t + 1);
+		return true;
+	}
+
+	/**
+	 * Add as many items from the list as will fit, publishing them to the consumer
+	 * in one step.
+	 *
+	 * @return the number of leading items of the list that were added
+	 */
+	public int offerAll(List<? extends T> items) {
+		long t = tail.get();
+		int count = (int) Math.min(items.size(), slots.length - (t - head.get()));
+		for (int i = 0; i < count; i++) {
+			slots[(int) ((t + i) & mask)] = items.get(i);
+		}
+		if (count > 0) {
+			publish(t + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Wait, as the consumer, until there are items to take, the consumer thread
+	 * is unparked or the timeout passes.
+	 */
+	public void await(long timeoutNanos) {
+		waitingConsumer = Thread.currentThread();
+		if (isEmpty()) {
+			LockSupport.parkNanos(this, timeoutNanos);
+		}
+		waitingConsumer = null;
+	}
+
+	private void publish(long newTail) {
+		// A full volatile write, so the consumer either sees the new items before
+		// it parks or is seen waiting here and unparked
+		tail.set(newTail);
+		Thread consumer = waitingConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Take the oldest item.
+	 *
+	 * @return the item, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		long h = head.get();
+		if (h == tail.get()) {
+			return null;
+		}
+		int idx = (int) (h & mask);
+		T item = (T) slots[idx];
+		slots[idx] = null;
+		head.lazySet(h + 1);
+		return item;
+	}
+
+	/**
+	 * Move up to maxItems items, oldest first, into the batch collection.
+	 *
+	 * @return the number of items moved
+	 */
+	@SuppressWarnings("unchecked")
+	public int drainTo(Collection<? super T> batch, int maxItems) {
+		long h = head.get();
+		int count = (int) Math.min(maxItems, tail.get() - h);
+		for (int i = 0; i < count; i++) {
+			int idx = (int) ((h + i) & mask);
+			batch.add((T) slots[idx]);
+			slots[idx] = null;
+		}
+		if (count > 0) {
+			head.lazySet(h + count);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,63 @@
+package org.cattech.WMR88Interface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pipeline stage delivering decoded readings to a callback.
+ *
+ * Readings outside the stage's subscription are never queued for it.
+ */
+class SinkStage extends PipelineStage<String> {
+
+	private final WMR88Callback callback;
+	private final Subscription subscription;
+	private final List<String> selected = new ArrayList<>();
+
+	SinkStage(WMR88Callback callback, int bufferSize, int batchSize, Subscription subscription) {
+		super(bufferSize, batchSize);
+		this.callback = callback;
+		this.subscription = subscription;
+	}
+
+	Subscription getSubscription() {
+		return subscription;
+	}
+
+	WMR88Callback getCallback() {
+		return callback;
+	}
+
+	/**
+	 * @param readings        decoded readings
+	 * @param readingSensors  the sensor type of each reading
+	 * @param readingChannels the channel of each reading, -1 if it has none
+	 */
+	void publish(List<String> readings, List<DeviceParameters> readingSensors, List<Integer> readingChannels) {
+		selected.clear();
+		for (int i = 0; i < readings.size(); i++) {
+			if (subscription.wants(readingSensors.get(i), readingChannels.get(i))) {
+				selected.add(readings.get(i));
+			}
+		}
+		if (!selected.isEmpty()) {
+			enqueue(selected);
+		}
+	}
+
+	@Override
+	void deliver(String reading) {
+		WMR88Events.Callback callbackEvent = new WMR88Events.Callback();
+		callbackEvent.begin();
+		try {
+			callback.receiveData(reading);
+		} catch (RuntimeException e) {
+			log.error("Callback failed to process reading " + reading, e);
+		}
+		callbackEvent.end();
+		if (callbackEvent.shouldCommit()) {
+			callbackEvent.sink = getName();
+			callbackEvent.commit();
+		}
+	}
+}
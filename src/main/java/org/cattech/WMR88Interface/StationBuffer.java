@@ -0,0 +1,99 @@
+package org.cattech.WMR88Interface;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The bytes read from the station that haven't been separated into frames yet,
+ * in a plain byte array. Reports are appended at the back and frames taken
+ * from the front, so the bytes only move when the array fills up.
+ */
+final class StationBuffer {
+	Logger log = LogManager.getLogger(StationBuffer.class);
+
+	private byte[] bytes = new byte[256];
+	// Where the buffered bytes start in the array, and how many there are
+	private int start;
+	private int length;
+
+	int size() {
+		return length;
+	}
+
+	int getByte(int bytePos) {
+		return Byte.toUnsignedInt(bytes[start + bytePos]);
+	}
+
+	/**
+	 * Append the data bytes of a USB report, which starts with the number of data
+	 * bytes that follow it, as WMRBuffer.append does.
+	 */
+	void append(byte[] report) {
+		int count = report[0];
+		if (count <= 0) {
+			return;
+		}
+		if (count >= report.length) {
+			log.error("Length of packet : " + count + ", longer than buffer length " + report.length);
+			return;
+		}
+		if (start + length + count > bytes.length) {
+			moveTo(0, length + count);
+		}
+		System.arraycopy(report, 1, bytes, start + length, count);
+		length += count;
+	}
+
+	/**
+	 * Copy bytes from..to-1 to the start of the destination.
+	 */
+	void copyTo(int from, int to, byte[] destination) {
+		System.arraycopy(bytes, start + from, destination, 0, to - from);
+	}
+
+	/**
+	 * Remove the first count bytes.
+	 */
+	void removeLeading(int count) {
+		start += count;
+		length -= count;
+		if (length == 0) {
+			start = 0;
+		}
+	}
+
+	/**
+	 * Put bytes from..to-1 of a frame back at the front, for data that turned out
+	 * not to belong to it.
+	 */
+	void prepend(WMRBuffer frame, int from, int to) {
+		int count = to - from;
+		if (start < count) {
+			moveTo(count, length);
+		}
+		start -= count;
+		length += count;
+		for (int i = 0; i < count; i++) {
+			bytes[start + i] = (byte) frame.getByte(from + i);
+		}
+	}
+
+	void clear() {
+		start = 0;
+		length = 0;
+	}
+
+	/**
+	 * Move the buffered bytes to this position in the array, growing it if it
+	 * can't hold capacity bytes from there.
+	 */
+	private void moveTo(int position, int capacity) {
+		byte[] destination = bytes;
+		if (position + capacity > bytes.length) {
+			destination = new byte[Math.max(bytes.length * 2, position + capacity)];
+		}
+		System.arraycopy(bytes, start, destination, position, length);
+		bytes = destination;
+		start = position;
+	}
+}
@@ -0,0 +1,11 @@
+package org.cattech.WMR88Interface;
+
+import java.io.IOException;
+
+/**
+ * Where an interface that is decoding reports handed to it, rather than read
+ * by its own thread, sends its commands to the station.
+ */
+interface StationCommandWriter {
+	abstract void write(byte[] command) throws IOException;
+}
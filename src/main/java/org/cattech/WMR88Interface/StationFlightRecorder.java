@@ -0,0 +1,82 @@
+package org.cattech.WMR88Interface;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Date;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jdk.jfr.Recording;
+
+/**
+ * Always-on flight recording of the station events, kept as a bounded ring of
+ * the most recent history and written out to a file when something goes wrong.
+ */
+public class StationFlightRecorder {
+	Logger log = LogManager.getLogger(StationFlightRecorder.class);
+
+	private final Path dumpDirectory;
+	private final Recording recording;
+
+	/**
+	 * @param dumpDirectory where dump() writes its .jfr files
+	 * @param maxAge        how much history to keep in the ring
+	 * @param maxSizeBytes  upper bound on the size of the kept history
+	 */
+	public StationFlightRecorder(Path dumpDirectory, Duration maxAge, long maxSizeBytes) {
+		this.dumpDirectory = dumpDirectory;
+
+		recording = new Recording();
+		recording.setName("WMR88 Station");
+		recording.setToDisk(true);
+		recording.setMaxAge(maxAge);
+		recording.setMaxSize(maxSizeBytes);
+
+		recording.enable(WMR88Events.HidRead.class);
+		recording.enable(WMR88Events.FrameAssembled.class);
+		recording.enable(WMR88Events.ChecksumFailure.class);
+		recording.enable(WMR88Events.Decode.class);
+		recording.enable(WMR88Events.Callback.class);
+		// Enough of the JVM's own view to tell GC pauses apart from slow USB reads
+		recording.enable("jdk.GarbageCollection");
+		recording.enable("jdk.GCPhasePause");
+		recording.enable("jdk.SafepointBegin");
+		recording.enable("jdk.ThreadPark").withThreshold(Duration.ofMillis(20));
+	}
+
+	public StationFlightRecorder(Path dumpDirectory) {
+		this(dumpDirectory, Duration.ofMinutes(15), 32L * 1024 * 1024);
+	}
+
+	public void start() {
+		recording.start();
+		log.info("Flight recording started, dumps go to " + dumpDirectory);
+	}
+
+	/**
+	 * Write the history currently held by the recording to a timestamped file.
+	 *
+	 * @return the file written, or null if it couldn't be written
+	 */
+	public Path dump(String reason) {
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		Path target = dumpDirectory.resolve("wmr88-" + stamp + ".jfr");
+		try {
+			Files.createDirectories(dumpDirectory);
+			recording.dump(target);
+			log.warn("Flight recording dumped to " + target + " : " + reason);
+			return target;
+		} catch (IOException | IllegalStateException e) {
+			log.error("Unable to dump flight recording to " + target, e);
+			return null;
+		}
+	}
+
+	public void close() {
+		recording.close();
+	}
+}
@@ -0,0 +1,590 @@
+package org.cattech.WMR88Interface;
+
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Stands in for a weather station, generating valid frames for every sensor
+ * type with plausible values and splitting them into USB reports the same way
+ * the station does, so the whole pipeline can be exercised without hardware.
+ *
+ * One simulator can play any number of stations at once, each with its own
+ * weather, interleaved on the one report stream. Faults can be injected at a
+ * configurable rate to check how consumers cope with a noisy USB link.
+ */
+public class StationSimulator implements WMR88ReportSource {
+	Logger log = LogManager.getLogger(StationSimulator.class);
+
+	public enum Fault {
+		/** Flip a single bit somewhere in a frame, after the checksum is computed */
+		BIT_FLIP,
+		/** Insert a stray 0xFF byte into a frame */
+		STRAY_DELIMITER,
+		/** Cut the tail off a frame */
+		TRUNCATED_FRAME,
+		/** Leave out the delimiter before a frame, merging it into the previous one */
+		MERGED_FRAME,
+		/** Lose a whole USB report */
+		DROPPED_REPORT,
+	}
+
+	// A WMR100 sends a frame for one of its sensors every 5 seconds or so
+	static final double STATION_FRAMES_PER_SECOND = 0.2;
+
+	private static final int FRAME_BYTE_DELIMITER = 0xFF;
+	private static final int REPORT_DATA_BYTES = 8;
+	private static final long IDLE_POLL_MS = 50;
+	// Times to let the weather move on when a frame happens to contain 0xFF
+	private static final int FRAME_ATTEMPTS = 8;
+
+	// Roughly how often the station reports each sensor relative to the others
+	private static final DeviceParameters[] SENSOR_ROTATION = { DeviceParameters.Thermohygrometer, DeviceParameters.Anemometer, DeviceParameters.Thermohygrometer,
+			DeviceParameters.Barometer, DeviceParameters.Anemometer, DeviceParameters.Rainfall, DeviceParameters.Thermohygrometer, DeviceParameters.Anemometer,
+			DeviceParameters.UV, DeviceParameters.Clock };
+
+	private final Random random;
+	private final SimulatedStation[] stations;
+	private final EnumMap<Fault, Double> faultRates = new EnumMap<>(Fault.class);
+	private final EnumMap<Fault, AtomicLong> faultCounts = new EnumMap<>(Fault.class);
+	private final Calendar calendar = Calendar.getInstance();
+
+	private double framesPerSecond;
+	private long frameLimit = Long.MAX_VALUE;
+	private volatile long framesGenerated;
+	private volatile long reportsGenerated;
+	private long simulatedTimeMillis;
+	private long nextFrameNanos;
+	private int nextStation;
+	private volatile boolean finalDelimiterSent;
+
+	// Bytes generated but not yet sent in a report
+	private byte[] pending = new byte[64];
+	private int pendingStart;
+	private int pendingEnd;
+
+	public StationSimulator(int stationCount, long seed) {
+		random = new Random(seed);
+		stations = new SimulatedStation[stationCount];
+		for (int i = 0; i < stationCount; i++) {
+			stations[i] = new SimulatedStation(i, random);
+		}
+		for (Fault fault : Fault.values()) {
+			faultRates.put(fault, 0.0);
+			faultCounts.put(fault, new AtomicLong());
+		}
+		framesPerSecond = stationCount * STATION_FRAMES_PER_SECOND;
+		simulatedTimeMillis = System.currentTimeMillis() / 60000 * 60000;
+	}
+
+	public StationSimulator(int stationCount) {
+		this(stationCount, System.nanoTime());
+	}
+
+	/**
+	 * Frames generated per second of wall clock time, across all stations.
+	 * Defaults to the rate real stations send at, 0 generates as fast as the
+	 * reader asks.
+	 */
+	public void setFramesPerSecond(double framesPerSecond) {
+		this.framesPerSecond = framesPerSecond;
+	}
+
+	/**
+	 * Probability of a fault per frame, or per report for DROPPED_REPORT.
+	 */
+	public void setFaultRate(Fault fault, double rate) {
+		faultRates.put(fault, rate);
+	}
+
+	/**
+	 * Stop generating after this many frames, reads then just time out.
+	 */
+	public void setFrameLimit(long frameLimit) {
+		this.frameLimit = frameLimit;
+	}
+
+	/**
+	 * Station clock time of the first frame, later frames move it forward at the
+	 * stations' real reporting rate whatever the simulation speed.
+	 */
+	public void setStartTime(long startTimeMillis) {
+		this.simulatedTimeMillis = startTimeMillis / 60000 * 60000;
+	}
+
+	public long getFramesGenerated() {
+		return framesGenerated;
+	}
+
+	public long getReportsGenerated() {
+		return reportsGenerated;
+	}
+
+	public long getFaultCount(Fault fault) {
+		return faultCounts.get(fault).get();
+	}
+
+	/**
+	 * @return true once the frame limit is reached and every byte has been read
+	 */
+	public boolean isExhausted() {
+		return framesGenerated >= frameLimit && finalDelimiterSent && pendingStart == pendingEnd;
+	}
+
+	@Override
+	public void open() {
+		nextFrameNanos = System.nanoTime();
+		log.info("Simulating " + stations.length + " station(s) at " + (framesPerSecond > 0 ? framesPerSecond + " frames/s" : "full speed"));
+	}
+
+	@Override
+	public int readTimeout(byte[] buffer, int timeoutMs) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		while (true) {
+			if (pendingStart == pendingEnd && !generate(deadline)) {
+				return 0;
+			}
+
+			int count = Math.min(pendingEnd - pendingStart, 1 + random.nextInt(REPORT_DATA_BYTES));
+			buffer[0] = (byte) count;
+			System.arraycopy(pending, pendingStart, buffer, 1, count);
+			for (int i = count + 1; i < buffer.length; i++) {
+				buffer[i] = 0;
+			}
+			pendingStart += count;
+			reportsGenerated++;
+
+			if (!injectFault(Fault.DROPPED_REPORT)) {
+				return buffer.length;
+			}
+		}
+	}
+
+	/**
+	 * Commands from the interface thread are accepted and ignored.
+	 */
+	@Override
+	public void write(byte[] data) {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Queue the next frame once it is due, waiting no later than the deadline.
+	 *
+	 * @return false if nothing was queued
+	 */
+	private boolean generate(long deadline) {
+		if (framesGenerated >= frameLimit) {
+			if (!finalDelimiterSent) {
+				// The last frame only ends when the station sees the next delimiter
+				queue(FRAME_BYTE_DELIMITER);
+				queue(FRAME_BYTE_DELIMITER);
+				finalDelimiterSent = true;
+				return true;
+			}
+			sleepNanos(Math.min(deadline - System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MS)));
+			return false;
+		}
+
+		if (framesPerSecond > 0) {
+			long now = System.nanoTime();
+			if (now < nextFrameNanos) {
+				sleepNanos(Math.min(deadline, nextFrameNanos) - now);
+				if (System.nanoTime() < nextFrameNanos) {
+					return false;
+				}
+			}
+			// Don't try to catch up in a burst after a long stall
+			nextFrameNanos = Math.max(nextFrameNanos, now - TimeUnit.SECONDS.toNanos(1)) + (long) (1e9 / framesPerSecond);
+		}
+
+		queueFrame(nextFrame());
+		framesGenerated++;
+		return true;
+	}
+
+	private byte[] nextFrame() {
+		SimulatedStation station = stations[nextStation];
+		nextStation = (nextStation + 1) % stations.length;
+
+		simulatedTimeMillis += (long) (1000 / STATION_FRAMES_PER_SECOND / stations.length);
+
+		DeviceParameters sensor = SENSOR_ROTATION[station.rotation];
+		station.rotation = (station.rotation + 1) % SENSOR_ROTATION.length;
+
+		byte[] frame = null;
+		for (int attempt = 0; attempt < FRAME_ATTEMPTS; attempt++) {
+			station.advance(simulatedTimeMillis, random);
+			frame = encode(station, sensor);
+			if (!containsDelimiter(frame)) {
+				break;
+			}
+		}
+		return frame;
+	}
+
+	private void queueFrame(byte[] frame) {
+		int length = frame.length;
+
+		if (injectFault(Fault.BIT_FLIP)) {
+			frame[random.nextInt(length)] ^= (byte) (1 << random.nextInt(8));
+		}
+		if (injectFault(Fault.TRUNCATED_FRAME)) {
+			length = 1 + random.nextInt(length - 1);
+		}
+
+		if (!injectFault(Fault.MERGED_FRAME)) {
+			queue(FRAME_BYTE_DELIMITER);
+			queue(FRAME_BYTE_DELIMITER);
+		}
+
+		int strayPosition = injectFault(Fault.STRAY_DELIMITER) ? random.nextInt(length) : -1;
+		for (int i = 0; i < length; i++) {
+			if (i == strayPosition) {
+				queue(FRAME_BYTE_DELIMITER);
+			}
+			queue(frame[i]);
+		}
+	}
+
+	private boolean injectFault(Fault fault) {
+		double rate = faultRates.get(fault);
+		if (rate > 0 && random.nextDouble() < rate) {
+			faultCounts.get(fault).incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private void queue(int b) {
+		if (pendingEnd == pending.length) {
+			int size = pendingEnd - pendingStart;
+			if (size * 2 > pending.length) {
+				byte[] grown = new byte[pending.length * 2];
+				System.arraycopy(pending, pendingStart, grown, 0, size);
+				pending = grown;
+			} else {
+				System.arraycopy(pending, pendingStart, pending, 0, size);
+			}
+			pendingStart = 0;
+			pendingEnd = size;
+		}
+		pending[pendingEnd++] = (byte) b;
+	}
+
+	private void sleepNanos(long nanos) {
+		if (nanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static boolean containsDelimiter(byte[] frame) {
+		for (byte b : frame) {
+			if (Byte.toUnsignedInt(b) == FRAME_BYTE_DELIMITER) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// ------------------------------ Frame encoding ------------------------------
+
+	private byte[] encode(SimulatedStation station, DeviceParameters sensor) {
+		int[] f = new int[sensor.len];
+		f[1] = Byte.toUnsignedInt(sensor.id);
+
+		switch (sensor) {
+		case Anemometer:
+			encodeAnemometer(f, station);
+			break;
+		case Barometer:
+			encodeBarometer(f, station);
+			break;
+		case Clock:
+			encodeClock(f);
+			break;
+		case Rainfall:
+			encodeRainfall(f, station);
+			break;
+		case Thermohygrometer:
+			encodeThermohygrometer(f, station);
+			break;
+		case UV:
+			encodeUV(f, station);
+			break;
+		case INVALID:
+			throw new IllegalArgumentException("Can't simulate an invalid sensor");
+		}
+
+		return sealFrame(f);
+	}
+
+	/**
+	 * Add the checksum (sum of all preceding bytes, little endian) to the last two
+	 * bytes of the frame.
+	 */
+	static byte[] sealFrame(int[] f) {
+		int sum = 0;
+		for (int i = 0; i < f.length - 2; i++) {
+			sum += f[i] & 0xFF;
+		}
+		f[f.length - 2] = sum & 0xFF;
+		f[f.length - 1] = (sum >> 8) & 0xFF;
+
+		byte[] frame = new byte[f.length];
+		for (int i = 0; i < f.length; i++) {
+			frame[i] = (byte) f[i];
+		}
+		return frame;
+	}
+
+	private void encodeClock(int[] f) {
+		f[0] = 0x90;
+		f[2] = 0x03;
+		f[3] = 0x10;
+		encodeClockField(f, 4, simulatedTimeMillis);
+		f[9] = 0;
+	}
+
+	private void encodeClockField(int[] f, int i, long timeMillis) {
+		calendar.setTimeInMillis(timeMillis);
+		f[i] = calendar.get(Calendar.MINUTE);
+		f[i + 1] = calendar.get(Calendar.HOUR_OF_DAY);
+		f[i + 2] = calendar.get(Calendar.DAY_OF_MONTH);
+		f[i + 3] = calendar.get(Calendar.MONTH) + 1;
+		f[i + 4] = calendar.get(Calendar.YEAR) - 2000;
+	}
+
+	private void encodeBarometer(int[] f, SimulatedStation s) {
+		int pressure = Math.round(s.pressure);
+		f[2] = pressure & 0xFF;
+		f[3] = ((pressure >> 8) & 0x0F) | (s.forecast() << 4);
+		f[4] = pressure & 0xFF;
+		f[5] = ((pressure >> 8) & 0x0F) | (s.previousForecast << 4);
+		s.previousForecast = s.forecast();
+	}
+
+	private void encodeUV(int[] f, SimulatedStation s) {
+		f[2] = 0x01;
+		f[3] = s.uvIndex;
+	}
+
+	private void encodeThermohygrometer(int[] f, SimulatedStation s) {
+		int temperature = Math.round(Math.abs(s.temperature) * 10);
+		int dewpoint = Math.round(Math.abs(s.dewpoint()) * 10);
+
+		f[0] = s.temperatureTrend() << 4;
+		f[2] = s.channel & 0x0F;
+		f[3] = temperature & 0xFF;
+		f[4] = ((temperature >> 8) & 0x0F) | (s.temperature < 0 ? 0x80 : 0);
+		f[5] = Math.round(s.humidity);
+		f[6] = dewpoint & 0xFF;
+		f[7] = ((dewpoint >> 8) & 0x0F) | (s.dewpoint() < 0 ? 0x80 : 0);
+
+		if (s.temperature >= 27) {
+			// Heat index is reported in fahrenheit
+			int heatIndex = Math.round(s.heatIndexFahrenheit() * 10);
+			f[8] = heatIndex & 0xFF;
+			f[9] = (heatIndex >> 8) & 0x0F;
+		} else {
+			f[9] = 0x20;
+		}
+		s.lastReportedTemperature = s.temperature;
+	}
+
+	private void encodeRainfall(int[] f, SimulatedStation s) {
+		putWord(f, 2, Math.round(s.rainRate * 10));
+		putWord(f, 4, Math.round(s.rainHourly * 10));
+		putWord(f, 6, Math.round(s.rainDaily * 10));
+		putWord(f, 8, Math.round(s.rainTotal * 10));
+		encodeClockField(f, 10, s.rainResetMillis);
+	}
+
+	private void encodeAnemometer(int[] f, SimulatedStation s) {
+		int gust = Math.min(4095, Math.round(s.windGust * 10));
+		int average = Math.min(4095, Math.round(s.windAverage * 10));
+
+		f[2] = s.windDirection;
+		f[3] = 0x0C;
+		f[4] = gust & 0xFF;
+		f[5] = ((gust >> 8) & 0x0F) | ((average & 0x0F) << 4);
+		f[6] = (average >> 4) & 0xFF;
+
+		if (s.temperature < 10 && s.windAverage > 1.3) {
+			int chill = Math.round(s.windChill());
+			f[7] = Math.min(Math.abs(chill), 0xFE);
+			f[8] = chill < 0 ? 0x80 : 0x00;
+		} else {
+			f[8] = 0x20;
+		}
+	}
+
+	private static void putWord(int[] f, int i, int value) {
+		value = Math.min(value, 0xFEFE);
+		f[i] = value & 0xFF;
+		f[i + 1] = (value >> 8) & 0xFF;
+	}
+
+	// ------------------------------- Station weather ------------------------------
+
+	/**
+	 * Weather at one simulated station, following a daily temperature cycle with
+	 * random drift, and the occasional shower.
+	 */
+	private static class SimulatedStation {
+		final int channel;
+		int rotation;
+
+		final float baseTemperature;
+		float temperatureDrift;
+		float temperature;
+		float lastReportedTemperature;
+		float humidity;
+		float pressure;
+		float lastPressure;
+		int previousForecast;
+
+		float windAverage;
+		float windGust;
+		int windDirection;
+
+		boolean raining;
+		float rainRate;
+		float rainHourly;
+		float rainDaily;
+		float rainTotal;
+		long rainResetMillis;
+		int uvIndex;
+
+		long lastAdvanceMillis;
+
+		SimulatedStation(int index, Random random) {
+			channel = index;
+			rotation = random.nextInt(SENSOR_ROTATION.length);
+			baseTemperature = 5 + random.nextFloat() * 20;
+			pressure = 1000 + random.nextFloat() * 25;
+			lastPressure = pressure;
+			humidity = 60;
+			windAverage = random.nextFloat() * 4;
+			windDirection = random.nextInt(16);
+		}
+
+		void advance(long timeMillis, Random random) {
+			if (lastAdvanceMillis == 0) {
+				lastAdvanceMillis = timeMillis;
+				rainResetMillis = timeMillis;
+			}
+			float hours = (timeMillis - lastAdvanceMillis) / 3_600_000f;
+			lastAdvanceMillis = timeMillis;
+
+			double hourOfDay = (timeMillis / 3_600_000.0) % 24;
+
+			temperatureDrift += (float) (random.nextGaussian() * 0.1 - temperatureDrift * 0.01);
+			temperature = baseTemperature + (float) (8 * Math.sin(2 * Math.PI * (hourOfDay - 9) / 24)) + temperatureDrift;
+			humidity = clamp(humidity + (float) random.nextGaussian() - (humidity - (75 - 2 * (temperature - baseTemperature))) * 0.05f, 10, 99);
+
+			lastPressure = pressure;
+			pressure = clamp(pressure + (float) random.nextGaussian() * 0.1f - (pressure - 1013) * 0.001f, 960, 1050);
+
+			windAverage = clamp(windAverage + (float) random.nextGaussian() * 0.3f - (windAverage - 3) * 0.05f, 0, 30);
+			windGust = windAverage * (1 + 0.5f * Math.abs((float) random.nextGaussian()));
+			if (random.nextInt(4) == 0) {
+				windDirection = (windDirection + random.nextInt(3) + 15) % 16;
+			}
+
+			if (random.nextDouble() < (raining ? 0.02 : 0.005)) {
+				raining = !raining;
+			}
+			rainRate = raining ? 0.5f + random.nextFloat() * 2 : 0;
+			float rain = rainRate * hours;
+			rainHourly = rainHourly * Math.max(0, 1 - hours) + rain;
+			rainDaily = hourOfDay < hours ? rain : rainDaily + rain;
+			rainTotal += rain;
+
+			uvIndex = (int) Math.round(Math.max(0, 9 * Math.sin(Math.PI * (hourOfDay - 6) / 12)));
+		}
+
+		float dewpoint() {
+			// Magnus formula
+			double gamma = Math.log(humidity / 100.0) + 17.62 * temperature / (243.12 + temperature);
+			return (float) (243.12 * gamma / (17.62 - gamma));
+		}
+
+		float heatIndexFahrenheit() {
+			double t = temperature * 9 / 5 + 32;
+			double r = humidity;
+			return (float) (-42.379 + 2.04901523 * t + 10.14333127 * r - 0.22475541 * t * r - 0.00683783 * t * t - 0.05481717 * r * r + 0.00122874 * t * t * r
+					+ 0.00085282 * t * r * r - 0.00000199 * t * t * r * r);
+		}
+
+		float windChill() {
+			double windKmh = windAverage * 3.6;
+			double windPower = Math.pow(windKmh, 0.16);
+			return (float) Math.min(temperature, 13.12 + 0.6215 * temperature - 11.37 * windPower + 0.3965 * temperature * windPower);
+		}
+
+		int temperatureTrend() {
+			float delta = temperature - lastReportedTemperature;
+			return delta > 0.2 ? 1 : (delta < -0.2 ? 2 : 0);
+		}
+
+		int forecast() {
+			// Weather codes : Partly Cloudy, Rainy, Cloudy, Sunny, ?, Snowy
+			if (raining) {
+				return temperature < 0 ? 5 : 1;
+			}
+			float delta = pressure - lastPressure;
+			return delta > 0.05 ? 3 : (delta < -0.05 ? 2 : 0);
+		}
+
+		private static float clamp(float value, float min, float max) {
+			return Math.max(min, Math.min(max, value));
+		}
+	}
+
+	// ------------------------------- Load generator -------------------------------
+
+	/**
+	 * Drive the interface thread from the simulator and report its throughput.
+	 *
+	 * Arguments : [stations] [seconds] [max]; "max" generates frames as fast as
+	 * the pipeline can take them instead of at the stations' real rate.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int stationCount = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		StationSimulator simulator = new StationSimulator(stationCount);
+		if (args.length > 2 && args[2].equals("max")) {
+			simulator.setFramesPerSecond(0);
+		}
+
+		final AtomicLong readings = new AtomicLong();
+		WMR88InterfaceThread wThread = new WMR88InterfaceThread();
+		wThread.setReportSource(simulator);
+		wThread.setCallback(jsonData -> readings.incrementAndGet());
+
+		Thread thread = new Thread(wThread, "WMR88 Interface");
+		long start = System.nanoTime();
+		thread.start();
+		thread.join(TimeUnit.SECONDS.toMillis(seconds));
+		wThread.stop();
+		thread.join();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format("%d station(s) : %d frames in %d reports, %d readings delivered in %.1fs (%.0f readings/s)", stationCount,
+				simulator.getFramesGenerated(), simulator.getReportsGenerated(), readings.get(), elapsed, readings.get() / elapsed));
+	}
+}
@@ -0,0 +1,76 @@
+package org.cattech.WMR88Interface;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The readings a callback wants, by sensor type, channel and field. A new
+ * subscription wants everything, each setter narrows it.
+ *
+ * Frames nobody subscribes to are still checked, but not decoded, and only the
+ * fields someone subscribes to are decoded. A callback may still receive
+ * fields it didn't ask for when another callback asked for them.
+ */
+public class Subscription {
+	// Always decoded, they say what the reading is
+	static final Set<String> IDENTIFYING_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("Type", "SensorNumber")));
+
+	private Set<DeviceParameters> sensors;
+	private final boolean[] channels = new boolean[256];
+	private boolean allChannels = true;
+	private Set<String> fields;
+
+	/**
+	 * Only these sensor types (DeviceParameters.INVALID for invalid frames), all
+	 * of them if none are given.
+	 */
+	public void setSensors(DeviceParameters... sensors) {
+		setSensors(Arrays.asList(sensors));
+	}
+
+	public void setSensors(Collection<DeviceParameters> sensors) {
+		this.sensors = sensors.isEmpty() ? null : EnumSet.copyOf(sensors);
+	}
+
+	/**
+	 * Only readings from these channels (sensor numbers), all of them if none are
+	 * given. Sensors without a channel, such as the anemometer, always match.
+	 */
+	public void setChannels(int... channels) {
+		Arrays.fill(this.channels, false);
+		for (int channel : channels) {
+			this.channels[channel & 0xFF] = true;
+		}
+		allChannels = channels.length == 0;
+	}
+
+	/**
+	 * Only decode these fields (as named in the JSON readings), all of them if none
+	 * are given. Type, SensorNumber and any Error are always included.
+	 */
+	public void setFields(String... fields) {
+		this.fields = fields.length == 0 ? null : new HashSet<>(Arrays.asList(fields));
+	}
+
+	boolean wantsSensor(DeviceParameters sensor) {
+		return sensors == null || sensors.contains(sensor);
+	}
+
+	/**
+	 * @param channel the reading's sensor number, or -1 if it doesn't have one
+	 */
+	boolean wants(DeviceParameters sensor, int channel) {
+		return wantsSensor(sensor) && (channel < 0 || allChannels || channels[channel]);
+	}
+
+	/**
+	 * @return the fields wanted, null for all of them
+	 */
+	Set<String> getFields() {
+		return fields;
+	}
+}
@@ -0,0 +1,112 @@
+package org.cattech.WMR88Interface;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events for the station I/O path.
+ *
+ * Events are only committed while a recording has them enabled, see
+ * StationFlightRecorder for an always-on recording that is dumped on error.
+ */
+public final class WMR88Events {
+	static final String CATEGORY = "WMR88 Station";
+
+	// Checked before creating an event for every frame
+	static final EventSwitch FRAME_ASSEMBLED = new EventSwitch(FrameAssembled.class);
+
+	private WMR88Events() {
+	}
+
+	/**
+	 * Whether a recording has an event type enabled, for events too frequent to
+	 * create just to find out. The JIT usually optimises away an event that isn't
+	 * committed, but not always once the flight recorder has started part way
+	 * through. Nothing is looked up until the flight recorder has started.
+	 */
+	static final class EventSwitch {
+		private final Class<? extends Event> eventClass;
+		private volatile EventType type;
+
+		EventSwitch(Class<? extends Event> eventClass) {
+			this.eventClass = eventClass;
+		}
+
+		boolean isEnabled() {
+			if (!FlightRecorder.isInitialized()) {
+				return false;
+			}
+			EventType current = type;
+			if (current == null) {
+				current = EventType.getEventType(eventClass);
+				type = current;
+			}
+			return current.isEnabled();
+		}
+	}
+
+	@Name("org.cattech.WMR88Interface.HidRead")
+	@Label("HID Read")
+	@Description("One read of a USB report from the weather station")
+	@Category(CATEGORY)
+	static class HidRead extends Event {
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+
+		@Label("Timed Out")
+		boolean timedOut;
+	}
+
+	@Name("org.cattech.WMR88Interface.FrameAssembled")
+	@Label("Frame Assembled")
+	@Description("A complete frame was separated out of the station buffer")
+	@Category(CATEGORY)
+	static class FrameAssembled extends Event {
+		@Label("Sensor ID")
+		int sensorId;
+
+		@Label("Length")
+		@DataAmount
+		int length;
+	}
+
+	@Name("org.cattech.WMR88Interface.ChecksumFailure")
+	@Label("Checksum Failure")
+	@Description("A frame was dropped because its checksum did not match")
+	@Category(CATEGORY)
+	static class ChecksumFailure extends Event {
+		@Label("Sensor ID")
+		int sensorId;
+
+		@Label("Expected")
+		int expected;
+
+		@Label("Actual")
+		int actual;
+	}
+
+	@Name("org.cattech.WMR88Interface.Decode")
+	@Label("Frame Decode")
+	@Description("Time spent decoding one frame")
+	@Category(CATEGORY)
+	static class Decode extends Event {
+		@Label("Sensor Type")
+		String sensorType;
+	}
+
+	@Name("org.cattech.WMR88Interface.Callback")
+	@Label("Callback")
+	@Description("Time spent in a callback handling one reading")
+	@Category(CATEGORY)
+	static class Callback extends Event {
+		@Label("Sink")
+		String sink;
+	}
+}
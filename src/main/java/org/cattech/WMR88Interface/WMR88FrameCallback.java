@@ -0,0 +1,15 @@
+package org.cattech.WMR88Interface;
+
+/**
+ * Receives raw station frames instead of decoded readings, for sinks that only
+ * forward or archive frames, or need one or two values from them.
+ */
+public interface WMR88FrameCallback {
+	/**
+	 * The frame is shared with the other frame callbacks and reused once they
+	 * have all released it, so call frame.release() when done with it and don't
+	 * touch it afterwards. The callback owns the frame once called, release it
+	 * even if processing it fails.
+	 */
+	abstract void receiveFrame(FrameView frame);
+}
@@ -1,16 +1,27 @@
 package org.cattech.WMR88Interface;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 
-import com.codeminders.hidapi.HIDDevice;
-import com.codeminders.hidapi.HIDManager;
-
 public class WMR88InterfaceThread implements Runnable {
 	Logger log = LogManager.getLogger(WMR88InterfaceThread.class);
 
@@ -33,24 +44,79 @@ public class WMR88InterfaceThread implements Runnable {
 
 	// ----------------------------- USB variables ------------------------------
 
-	/** Weather station USB vendor/product identifiers */
-	private final int STATION_PRODUCT = 0xCA01;
-	private final int STATION_VENDOR = 0x0FDE;
-
-	private HIDManager hidManager;
-	private HIDDevice hidDevice;
+	private WMR88ReportSource reportSource;
+	// Where commands go when reports are decoded without running the thread
+	private StationCommandWriter commandWriter;
 
-	private long lastDataReceivedMS;
+	private volatile long lastDataReceivedMS;
 	private final int RESPONSE_TIMEOUT_SEC = 10;
 
 	private final int BUFFER_USB_RESP0NSE_BYTES = 9;
 
-	private WMRBuffer stationBuffer = new WMRBuffer();
+	private final StationBuffer stationBuffer = new StationBuffer();
+	// The decoder's current frame, reused for every frame
+	private final WMRBuffer decoderFrame = new WMRBuffer();
+	// The same frame as plain bytes, which frame views are filled from
+	private byte[] frameBytes = new byte[32];
+	// Reused to check the frames nobody wants decoded
+	private JSONObject checkedFrame = new JSONObject();
 
 	Calendar c = Calendar.getInstance();
 
-	private boolean running;
-	private WMR88Callback callback;
+	// --------------------------- Pipeline variables ----------------------------
+
+	private static final int DEFAULT_BUFFER_SIZE = 1024;
+	private static final int DEFAULT_BATCH_SIZE = 64;
+	private static final int LOW_MEMORY_BUFFER_SIZE = 64;
+	private static final int LOW_MEMORY_BATCH_SIZE = 16;
+
+	// Raw USB reports queued between the reader and the decoder
+	private int reportBufferSize = DEFAULT_BUFFER_SIZE;
+	private int reportBatchSize = DEFAULT_BATCH_SIZE;
+	// Decoded readings queued between the decoder and each callback
+	private int sinkBufferSize = DEFAULT_BUFFER_SIZE;
+	private int sinkBatchSize = DEFAULT_BATCH_SIZE;
+
+	private RingBuffer<byte[]> reportRing;
+	// Report arrays the decoder is done with, handed back for the reader to reuse
+	private RingBuffer<byte[]> freeReports;
+	private long droppedReports;
+	private final List<SinkStage> sinks = new CopyOnWriteArrayList<>();
+	// Decoded by decodeReport and not yet dispatched, only used by the decoder
+	private final List<String> decodedReadings = new ArrayList<>();
+	private final List<DeviceParameters> decodedSensors = new ArrayList<>();
+	private final List<Integer> decodedChannels = new ArrayList<>();
+	private final List<FrameView> decodedFrames = new ArrayList<>();
+	// Fields to decode per sensor type for the current subscriptions (null for all
+	// of them), sensor types nobody subscribes to are missing
+	private final List<FrameSinkStage> frameSinks = new CopyOnWriteArrayList<>();
+	// Frame views no frame callback holds any more, created with the first frame callback
+	private Queue<FrameView> freeFrameViews;
+	private int framePoolSize = DEFAULT_BUFFER_SIZE;
+	private int frameViewsCreated;
+	private long droppedFrames;
+	private volatile Map<DeviceParameters, Set<String>> decodeFields = new EnumMap<>(DeviceParameters.class);
+	// Fields the decoder is currently decoding, null for all of them
+	private Set<String> fieldsToDecode;
+
+	private volatile boolean running;
+	private volatile Thread decoderThread;
+	// Set from starting the sink stages until they are stopped, while the decoder
+	// may be running. Guarded by sinks, callbacks registered meanwhile start their
+	// stage straight away.
+	private volatile boolean stagesStarted;
+	private int sinksNamed;
+	private int frameSinksNamed;
+	private volatile StationFlightRecorder flightRecorder;
+
+	// Startup milestones (ms since epoch), logged once the first frame is decoded
+	private long threadStartMillis;
+	private long sourceOpenMillis;
+	private long firstReportMillis;
+	private volatile long firstFrameMillis;
+
+	// As String.format would use for decimal values
+	private final char decimalSeparator = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT)).getDecimalSeparator();
 
 	private boolean returnInvalidFrames = false;
 	private boolean useMetric = false;
@@ -60,52 +126,431 @@ public class WMR88InterfaceThread implements Runnable {
 	/**
 	 * Main thread to open the weather station device, repeatedly read from it, and
 	 * route data as required.
+	 * 
+	 * This thread only reads raw USB reports and queues them, framing and decoding
+	 * happen on a separate decoder thread, and each callback is called from its own
+	 * sink thread, so slow downstream work never delays a read.
 	 **/
 	@Override
 	public void run() {
 		this.running = true;
+		threadStartMillis = System.currentTimeMillis();
+		firstReportMillis = 0;
+		firstFrameMillis = 0;
 
 		log.info("Initializing sensor data");
 
 		lastDataReceivedMS = 0;
 		stationBuffer.clear();
+		reportRing = new RingBuffer<>(reportBufferSize);
+		freeReports = new RingBuffer<>(reportBufferSize);
 
 		byte[] responseBufferUSB = new byte[BUFFER_USB_RESP0NSE_BYTES];
+		decoderThread = null;
 
 		try {
-			com.codeminders.hidapi.ClassPathLibraryLoader.loadNativeHIDLibrary();
-			hidManager = HIDManager.getInstance();
-			hidDevice = stationOpen();
+			if (reportSource == null) {
+				reportSource = new HIDReportSource();
+			}
+			reportSource.open();
+			sourceOpenMillis = System.currentTimeMillis();
 
-			if (hidDevice == null) {
-				throw (new Exception("could not open weather station device"));
-			} else {
-				while (running) {
-					if (System.currentTimeMillis() - lastDataReceivedMS > STATION_TIMEOUT_BEFORE_REREQUEST_SEC * 1000) {
-						stationDataRequest();
-						lastDataReceivedMS = System.currentTimeMillis();
-					}
+			// Ask for data before starting the other stages, the station takes a
+			// while to answer and they are ready long before it does.
+			stationDataRequest();
+			lastDataReceivedMS = System.currentTimeMillis();
 
-					int responseByteCount = hidDevice.readTimeout(responseBufferUSB, RESPONSE_TIMEOUT_SEC * 1000);
-					stationBuffer.append(responseByteCount, responseBufferUSB);
-					parseStationData();
+			startSinkStages();
+			decoderThread = new Thread(this::decodeStationReports, "WMR88 Decoder");
+			decoderThread.setDaemon(true);
+			decoderThread.start();
+
+			while (running) {
+				requestDataIfQuiet();
+
+				WMR88Events.HidRead readEvent = new WMR88Events.HidRead();
+				readEvent.begin();
+				int responseByteCount = reportSource.readTimeout(responseBufferUSB, RESPONSE_TIMEOUT_SEC * 1000);
+				readEvent.end();
+				if (readEvent.shouldCommit()) {
+					readEvent.bytes = responseByteCount;
+					readEvent.timedOut = responseByteCount <= 0;
+					readEvent.commit();
+				}
+				if (responseByteCount > 0 && firstReportMillis == 0) {
+					firstReportMillis = System.currentTimeMillis();
+				}
+				if (responseByteCount > 0) {
+					// The decoder owns the array once queued, read the next report into another
+					byte[] report = responseBufferUSB;
+					responseBufferUSB = freeReports.poll();
+					if (responseBufferUSB == null) {
+						responseBufferUSB = new byte[BUFFER_USB_RESP0NSE_BYTES];
+					}
+					if (!reportRing.offer(report)) {
+						droppedReports++;
+						// Only log at powers of two so a stalled decoder doesn't flood the log
+						if ((droppedReports & (droppedReports - 1)) == 0) {
+							log.warn("Decoder is behind, dropped USB report (" + droppedReports + " total)");
+						}
+					}
 				}
 			}
-
+		} catch (IOException e) {
+			if (running) {
+				log.error("Thread error: " + e);
+				e.printStackTrace();
+				dumpFlightRecording("Thread error: " + e);
+			} else {
+				// Sources such as network stations may be closed under a read once stopped
+				log.debug("Report source closed while stopping : " + e);
+			}
 		} catch (Throwable throwable) {
 			log.error("Thread error: " + throwable);
 			throwable.printStackTrace();
-
-			this.running = false;
+			dumpFlightRecording("Thread error: " + throwable);
 		} finally {
+			this.running = false;
 			stationCloseNoThrow();
+			if (decoderThread != null) {
+				LockSupport.unpark(decoderThread);
+			}
+			joinStage(decoderThread);
+			stopSinkStages();
+		}
+	}
+
+	/**
+	 * Decoder stage, takes batches of USB reports from the reader, assembles them
+	 * into frames, decodes them and hands the batch of readings and frames to the
+	 * sinks.
+	 */
+	private void decodeStationReports() {
+		List<byte[]> reports = new ArrayList<>(reportBatchSize);
+		try {
+			while (running || !reportRing.isEmpty()) {
+				if (reportRing.drainTo(reports, reportBatchSize) == 0) {
+					reportRing.await(PipelineStage.IDLE_WAIT_NANOS);
+					continue;
+				}
+				for (int r = 0; r < reports.size(); r++) {
+					byte[] report = reports.get(r);
+					decodeReport(report);
+					freeReports.offer(report);
+				}
+				reports.clear();
+				dispatchDecoded();
+			}
+		} catch (Throwable throwable) {
+			log.error("Decoder error: " + throwable);
+			throwable.printStackTrace();
+			dumpFlightRecording("Decoder error: " + throwable);
+
+			this.running = false;
+		}
+	}
+
+	/**
+	 * Add a USB report to the station's data and decode the frames it completes,
+	 * keeping what was decoded for dispatchDecoded. Only one thread at a time may
+	 * decode a station's reports.
+	 */
+	void decodeReport(byte[] report) {
+		stationBuffer.append(report);
+		WMRBuffer frameBuffer = decoderFrame;
+		while (nextStationFrame(frameBuffer)) {
+			DeviceParameters sensor = sensorOf(frameBuffer);
+			int channel = channelOf(frameBuffer, sensor);
+			// Frames nobody wants are still checked, to repair oversized frames and
+			// notice the station has gone quiet, but not decoded or serialised
+			boolean wanted = isWanted(sensor, channel);
+			JSONObject decoded = wanted ? decodeSensorDataFrame(frameBuffer, decodeFields.get(sensor)) : checkSensorDataFrame(frameBuffer);
+			if (wanted) {
+				decodedReadings.add(decoded.toString());
+				decodedSensors.add(sensor);
+				decodedChannels.add(channel);
+			}
+			if (isFrameWanted(sensor, channel)) {
+				FrameView frame = frameViewOf(frameBuffer, sensor, channel, decoded);
+				if (frame != null) {
+					decodedFrames.add(frame);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hand the readings and frames decoded since the last call to the sinks.
+	 */
+	void dispatchDecoded() {
+		dispatch(decodedReadings, decodedSensors, decodedChannels);
+		decodedReadings.clear();
+		decodedSensors.clear();
+		decodedChannels.clear();
+		dispatchFrames(decodedFrames);
+	}
+
+	/**
+	 * Ask the station for data if it hasn't sent a frame for a while, or hasn't
+	 * been asked yet.
+	 */
+	void requestDataIfQuiet() throws IOException {
+		if (System.currentTimeMillis() - lastDataReceivedMS > STATION_TIMEOUT_BEFORE_REREQUEST_SEC * 1000) {
+			stationDataRequest();
+			lastDataReceivedMS = System.currentTimeMillis();
 		}
 	}
 
+	private void logStartupTimes() {
+		// Only look up the JVM start time now, so the management classes aren't
+		// loaded while starting up
+		long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+		log.info("Time to first frame " + (firstFrameMillis - jvmStartMillis) + "ms : JVM start to interface thread " + (threadStartMillis - jvmStartMillis)
+				+ "ms, opening station " + (sourceOpenMillis - threadStartMillis) + "ms, first report " + (firstReportMillis - sourceOpenMillis) + "ms, first frame "
+				+ (firstFrameMillis - firstReportMillis) + "ms");
+	}
+
+	private void dumpFlightRecording(String reason) {
+		if (flightRecorder != null) {
+			flightRecorder.dump(reason);
+		}
+	}
+
+	/**
+	 * Start a thread for each callback, and for each one registered until
+	 * stopSinkStages.
+	 */
+	void startSinkStages() {
+		synchronized (sinks) {
+			stagesStarted = true;
+			sinksNamed = 0;
+			frameSinksNamed = 0;
+			for (SinkStage sink : sinks) {
+				startStage(sink);
+			}
+			for (FrameSinkStage frameSink : frameSinks) {
+				startStage(frameSink);
+			}
+		}
+	}
+
+	/**
+	 * Deliver what the callbacks have queued and stop their threads.
+	 */
+	void stopSinkStages() {
+		synchronized (sinks) {
+			stagesStarted = false;
+			for (SinkStage sink : sinks) {
+				sink.stop();
+			}
+			for (FrameSinkStage frameSink : frameSinks) {
+				frameSink.stop();
+			}
+		}
+	}
+
+	private void startStage(PipelineStage<?> stage) {
+		stage.start(stage instanceof FrameSinkStage ? "WMR88 Frame Sink " + frameSinksNamed++ : "WMR88 Sink " + sinksNamed++);
+	}
+
+	/**
+	 * Register a stage, starting it if the others are running.
+	 */
+	private <T extends PipelineStage<?>> void addStage(List<T> stages, T stage) {
+		synchronized (sinks) {
+			// Started first, or the decoder could find it and deliver to it directly
+			if (stagesStarted) {
+				startStage(stage);
+			}
+			stages.add(stage);
+		}
+	}
+
+	/**
+	 * Stop the threads of stages that have been unregistered.
+	 */
+	private void cancelStages(List<? extends PipelineStage<?>> stages) {
+		for (PipelineStage<?> stage : stages) {
+			stage.cancel();
+		}
+	}
+
+	private void joinStage(Thread stage) {
+		if (stage != null) {
+			try {
+				stage.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private boolean isWanted(DeviceParameters sensor, int channel) {
+		if (!decodeFields.containsKey(sensor)) {
+			return false;
+		}
+		for (SinkStage sink : sinks) {
+			if (sink.getSubscription().wants(sensor, channel)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isFrameWanted(DeviceParameters sensor, int channel) {
+		for (FrameSinkStage frameSink : frameSinks) {
+			if (frameSink.getSubscription().wants(sensor, channel)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write a checked frame into a free frame view.
+	 * 
+	 * @return the view, or null if all of them are still in use
+	 */
+	private FrameView frameViewOf(WMRBuffer frameBuffer, DeviceParameters sensor, int channel, JSONObject decoded) {
+		FrameView frame = freeFrameViews.poll();
+		if (frame == null) {
+			if (frameViewsCreated < framePoolSize) {
+				frameViewsCreated++;
+				frame = new FrameView(freeFrameViews);
+			} else {
+				droppedFrames++;
+				if ((droppedFrames & (droppedFrames - 1)) == 0) {
+					log.warn("Frame callbacks are behind or not releasing frames, dropped frame (" + droppedFrames + " total)");
+				}
+				return null;
+			}
+		}
+		// Checked frames without an error have a type, invalid frames have an error or nothing at all
+		boolean valid = decoded.has("Type") && !decoded.has("Error");
+		// Checking may have truncated the frame, the bytes it kept are still first
+		frame.set(frameBytes, 0, frameBuffer.size(), sensor, channel, valid, System.currentTimeMillis());
+		return frame;
+	}
+
+	private void setFrameBytes(WMRBuffer frameBuffer) {
+		if (frameBytes.length < frameBuffer.size()) {
+			frameBytes = new byte[frameBuffer.size()];
+		}
+		for (int i = 0; i < frameBuffer.size(); i++) {
+			frameBytes[i] = (byte) frameBuffer.getByte(i);
+		}
+	}
+
+	private void dispatchFrames(List<FrameView> frames) {
+		if (frames.isEmpty()) {
+			return;
+		}
+		for (FrameSinkStage frameSink : frameSinks) {
+			frameSink.publish(frames);
+		}
+		// Each sink holds its own reference now, drop the decoder's
+		for (int i = 0; i < frames.size(); i++) {
+			frames.get(i).release();
+		}
+		frames.clear();
+	}
+
+	private void dispatch(List<String> readings, List<DeviceParameters> readingSensors, List<Integer> readingChannels) {
+		if (!readings.isEmpty()) {
+			for (SinkStage sink : sinks) {
+				sink.publish(readings, readingSensors, readingChannels);
+			}
+		}
+	}
+
+	/**
+	 * Work out which fields to decode for each sensor type, from the
+	 * subscriptions of all the callbacks.
+	 */
+	private void subscriptionsChanged() {
+		EnumMap<DeviceParameters, Set<String>> fields = new EnumMap<>(DeviceParameters.class);
+		for (DeviceParameters sensor : DeviceParameters.values()) {
+			for (SinkStage sink : sinks) {
+				Subscription subscription = sink.getSubscription();
+				if (!subscription.wantsSensor(sensor)) {
+					continue;
+				}
+				if (subscription.getFields() == null) {
+					// Null for all fields
+					fields.put(sensor, null);
+					break;
+				}
+				Set<String> sensorFields = fields.get(sensor);
+				if (sensorFields == null) {
+					sensorFields = new HashSet<>(Subscription.IDENTIFYING_FIELDS);
+					fields.put(sensor, sensorFields);
+				}
+				sensorFields.addAll(subscription.getFields());
+			}
+		}
+		decodeFields = fields;
+	}
+
+	/**
+	 * Decode a single frame and pass the result straight to the registered
+	 * callbacks, on this thread. This stands in for the decoder, so it can only be
+	 * used while the interface isn't running.
+	 *
+	 * @throws IllegalStateException if the interface is running
+	 */
 	public JSONObject analyseSensorDataFrame(WMRBuffer frameBuffer) throws IOException {
-		JSONObject decoded = new JSONObject();
+		if (stagesStarted) {
+			throw new IllegalStateException("Frames can't be analysed while the interface is running");
+		}
+		DeviceParameters sensor = sensorOf(frameBuffer);
+		int channel = channelOf(frameBuffer, sensor);
+		JSONObject decoded = decodeSensorDataFrame(frameBuffer, null);
+
+		if (isWanted(sensor, channel)) {
+			dispatch(Collections.singletonList(decoded.toString()), Collections.singletonList(sensor), Collections.singletonList(channel));
+		}
+		if (isFrameWanted(sensor, channel)) {
+			setFrameBytes(frameBuffer);
+			FrameView frame = frameViewOf(frameBuffer, sensor, channel, decoded);
+			if (frame != null) {
+				dispatchFrames(new ArrayList<>(Collections.singletonList(frame)));
+			}
+		}
+
+//		generateTestCode(frameBuffer, decoded); // Convenience method for adding tests quickly.
+		return decoded;
+	}
+
+	/**
+	 * @param fields the fields to decode, null for all of them. With none the
+	 *               frame is only checked.
+	 */
+	private JSONObject decodeSensorDataFrame(WMRBuffer frameBuffer, Set<String> fields) {
+		return decodeSensorDataFrame(frameBuffer, fields, new JSONObject());
+	}
+
+	/**
+	 * Check a frame nobody wants decoded, into a JSON object reused from frame to
+	 * frame so that checking doesn't allocate. The result is only good until the
+	 * next frame is checked.
+	 */
+	private JSONObject checkSensorDataFrame(WMRBuffer frameBuffer) {
+		// Type is overwritten by the next valid frame, anything an invalid frame adds
+		// has to go
+		checkedFrame.remove("Error");
+		checkedFrame.remove("FrameDump");
+		checkedFrame.remove("Frame");
+		checkedFrame = decodeSensorDataFrame(frameBuffer, Collections.<String>emptySet(), checkedFrame);
+		return checkedFrame;
+	}
+
+	private JSONObject decodeSensorDataFrame(WMRBuffer frameBuffer, Set<String> fields, JSONObject decoded) {
+		fieldsToDecode = fields;
 
-		DeviceParameters devParm = DeviceParameters.lookup(frameBuffer.getByte(1));
+		DeviceParameters devParm = sensorOf(frameBuffer);
+
+		WMR88Events.Decode decodeEvent = new WMR88Events.Decode();
+		decodeEvent.begin();
 
 		switch (devParm) {
 		case Anemometer:
@@ -127,11 +572,23 @@ public class WMR88InterfaceThread implements Runnable {
 			decodeUV(decoded, frameBuffer);
 			break;
 		case INVALID:
-			decoded.put("Error", "Received packet for unknown sensor ID : code 0x" + String.format("%02X", frameBuffer.getByte(1)));
+			if (frameBuffer.size() > 1) {
+				decoded.put("Error", "Received packet for unknown sensor ID : code 0x" + WMRBuffer.toHex(frameBuffer.getByte(1), 2));
+			} else {
+				decoded.put("Error", "Frame length incorrect " + frameBuffer.size());
+			}
+		}
+
+		decodeEvent.end();
+		if (decodeEvent.shouldCommit()) {
+			decodeEvent.sensorType = devParm.name();
+			decodeEvent.commit();
 		}
 
 		if (decoded.has("Error")) {
-			log.debug("Ignoring invalid frame " + frameBuffer.toString());
+			if (log.isDebugEnabled()) {
+				log.debug("Ignoring invalid frame " + frameBuffer.toString());
+			}
 			if (returnInvalidFrames) {
 				decoded.put("Type", "InvalidFrame");
 				decoded.put("Frame", frameBuffer.toString());
@@ -142,15 +599,30 @@ public class WMR88InterfaceThread implements Runnable {
 			// Keep track of the last received valid packet, so we can timeout and
 			// re-request from the station.
 			lastDataReceivedMS = System.currentTimeMillis();
-		}
 
-		if (callback != null) {
-			callback.receiveData(decoded.toString());
+			if (firstFrameMillis == 0 && threadStartMillis != 0) {
+				firstFrameMillis = lastDataReceivedMS;
+				logStartupTimes();
+			}
 		}
 
-//		generateTestCode(frameBuffer, decoded); // Convenience method for adding tests quickly.
 		return decoded;
+	}
+
+	private static DeviceParameters sensorOf(WMRBuffer frameBuffer) {
+		// Frames mangled in transit can be too short to even hold a sensor ID
+		return frameBuffer.size() > 1 ? DeviceParameters.lookup(frameBuffer.getByte(1)) : DeviceParameters.INVALID;
+	}
+
+	/**
+	 * @return the sensor number, or -1 for sensors that don't have one
+	 */
+	private static int channelOf(WMRBuffer frameBuffer, DeviceParameters sensor) {
+		return sensor == DeviceParameters.Thermohygrometer && frameBuffer.size() > 2 ? frameBuffer.getNibble(2, 0) : -1;
+	}
 
+	private boolean decodes(String field) {
+		return fieldsToDecode == null || fieldsToDecode.contains(field);
 	}
 
 	@SuppressWarnings("unused")
@@ -168,16 +640,30 @@ public class WMR88InterfaceThread implements Runnable {
 	private void decodeClock(JSONObject decoded, WMRBuffer frameBuffer) {
 		decoded.put("Type", "Clock");
 		if (verifyChecksumAndLength(decoded, frameBuffer, DeviceParameters.Clock)) {
-			decoded.put("Powered", frameBuffer.getBitAsString(0, 7, "Yes", "No"));
-			decoded.put("Battery", frameBuffer.getBitAsString(0, 6, "Good", "Low"));
-			decoded.put("RFSync", frameBuffer.getBitAsString(0, 5, "Inactive", "Active"));
-			decoded.put("RFSignal", frameBuffer.getBitAsString(0, 4, "Strong", "Weak/Searching")); // TODO Verify this with the display
+			if (decodes("Powered")) {
+				decoded.put("Powered", frameBuffer.getBitAsString(0, 7, "Yes", "No"));
+			}
+			if (decodes("Battery")) {
+				decoded.put("Battery", frameBuffer.getBitAsString(0, 6, "Good", "Low"));
+			}
+			if (decodes("RFSync")) {
+				decoded.put("RFSync", frameBuffer.getBitAsString(0, 5, "Inactive", "Active"));
+			}
+			if (decodes("RFSignal")) {
+				decoded.put("RFSignal", frameBuffer.getBitAsString(0, 4, "Strong", "Weak/Searching")); // TODO Verify this with the display
+			}
 
-			long clockMillis = dataDecodeClockField(decoded, frameBuffer, 4, true);
+			if (decodes("DateTime") || decodes("Timestamp") || decodes("deltaMilis")) {
+				long clockMillis = dataDecodeClockField(decoded, frameBuffer, 4, true);
 
-			long deltaMillis = System.currentTimeMillis() - clockMillis;
-			decoded.put("deltaMilis", deltaMillis);
-			log.info("Computer time and Station time differ by " + deltaMillis + "ms");
+				long deltaMillis = System.currentTimeMillis() - clockMillis;
+				if (decodes("deltaMilis")) {
+					decoded.put("deltaMilis", deltaMillis);
+				}
+				if (log.isInfoEnabled()) {
+					log.info("Computer time and Station time differ by " + deltaMillis + "ms");
+				}
+			}
 		}
 	}
 
@@ -196,9 +682,13 @@ public class WMR88InterfaceThread implements Runnable {
 			c.setTimeZone(tz);
 		}
 
-		decoded.put("DateTime", c.getTime().toString());
+		if (decodes("DateTime")) {
+			decoded.put("DateTime", c.getTime().toString());
+		}
 		long timeInMillis = c.getTimeInMillis() / 1000 * 1000;
-		decoded.put("Timestamp", timeInMillis); // Zero out any milliseconds as the clock doesn't even report seconds.
+		if (decodes("Timestamp")) {
+			decoded.put("Timestamp", timeInMillis); // Zero out any milliseconds as the clock doesn't even report seconds.
+		}
 
 		return timeInMillis;
 	}
@@ -206,10 +696,18 @@ public class WMR88InterfaceThread implements Runnable {
 	private void decodeBarometer(JSONObject decoded, WMRBuffer frameBuffer) {
 		decoded.put("Type", "Barometer");
 		if (verifyChecksumAndLength(decoded, frameBuffer, DeviceParameters.Barometer)) {
-			decoded.put("pressureAbsolute", frameBuffer.getNibbles(2,0,3));
-			decoded.put("pressureRelative", 256 * (frameBuffer.getByte(5) % 16) + frameBuffer.getByte(4));
-			decoded.put("weatherForcast", getWeatherDescription(frameBuffer.getByte(3) / 16));
-			decoded.put("weatherPrevious", getWeatherDescription(frameBuffer.getByte(5) / 16));
+			if (decodes("pressureAbsolute")) {
+				decoded.put("pressureAbsolute", frameBuffer.getNibbles(2,0,3));
+			}
+			if (decodes("pressureRelative")) {
+				decoded.put("pressureRelative", 256 * (frameBuffer.getByte(5) % 16) + frameBuffer.getByte(4));
+			}
+			if (decodes("weatherForcast")) {
+				decoded.put("weatherForcast", getWeatherDescription(frameBuffer.getByte(3) / 16));
+			}
+			if (decodes("weatherPrevious")) {
+				decoded.put("weatherPrevious", getWeatherDescription(frameBuffer.getByte(5) / 16));
+			}
 		}
 	}
 
@@ -220,8 +718,12 @@ public class WMR88InterfaceThread implements Runnable {
 	private void decodeUV(JSONObject decoded, WMRBuffer frameBuffer) {
 		decoded.put("Type", "UV");
 		if (verifyChecksumAndLength(decoded, frameBuffer, DeviceParameters.UV)) {
-			decoded.put("Battery", decodeBattery(frameBuffer.getNibble(0, 1)));
-			decoded.put("UV_Index", frameBuffer.getByte(3));
+			if (decodes("Battery")) {
+				decoded.put("Battery", decodeBattery(frameBuffer.getNibble(0, 1)));
+			}
+			if (decodes("UV_Index")) {
+				decoded.put("UV_Index", frameBuffer.getByte(3));
+			}
 		}
 	}
 
@@ -229,22 +731,38 @@ public class WMR88InterfaceThread implements Runnable {
 		decoded.put("Type", "Thermohygrometer");
 		if (verifyChecksumAndLength(decoded, frameBuffer, DeviceParameters.Thermohygrometer)) {
 
-			decoded.put("Battery", frameBuffer.getBitAsString(0, 6, "Low", "OK"));
-			decoded.put("TemperatureTrend", frameBuffer.getBitsAsString(0, 4, 2, TREND_DESCRIPTION));
-			decoded.put("HumidityTrend", frameBuffer.getBitsAsString(2, 0, 2, TREND_DESCRIPTION));
-			decoded.put("Mood", frameBuffer.getBitsAsString(2, 6, 2, MOOD_FACES));
-			decoded.put("SensorNumber", frameBuffer.getNibble(2, 0));
+			if (decodes("Battery")) {
+				decoded.put("Battery", frameBuffer.getBitAsString(0, 6, "Low", "OK"));
+			}
+			if (decodes("TemperatureTrend")) {
+				decoded.put("TemperatureTrend", frameBuffer.getBitsAsString(0, 4, 2, TREND_DESCRIPTION));
+			}
+			if (decodes("HumidityTrend")) {
+				decoded.put("HumidityTrend", frameBuffer.getBitsAsString(2, 0, 2, TREND_DESCRIPTION));
+			}
+			if (decodes("Mood")) {
+				decoded.put("Mood", frameBuffer.getBitsAsString(2, 6, 2, MOOD_FACES));
+			}
+			if (decodes("SensorNumber")) {
+				decoded.put("SensorNumber", frameBuffer.getNibble(2, 0));
+			}
 
-			int temperatureSign = getSign(frameBuffer.getNibble(4, 1));
-			float temperature = temperatureSign * frameBuffer.getNibbles(3,0,3) / 10.0f;
-			decoded.put("Temperature", String.format("%.1f", temperature));
+			if (decodes("Temperature")) {
+				int temperatureSign = getSign(frameBuffer.getNibble(4, 1));
+				decoded.put("Temperature", formatTenths(temperatureSign * frameBuffer.getNibbles(3,0,3)));
+			}
 
-			int dewpointSign = getSign(frameBuffer.getNibble(7, 1));
-			float dewpoint = dewpointSign * frameBuffer.getNibbles(6,0,3) / 10.0f;
-			decoded.put("DewPoint", String.format("%.1f", dewpoint));
-			decoded.put("Humidity", frameBuffer.getByte(5));
+			if (decodes("DewPoint")) {
+				int dewpointSign = getSign(frameBuffer.getNibble(7, 1));
+				decoded.put("DewPoint", formatTenths(dewpointSign * frameBuffer.getNibbles(6,0,3)));
+			}
+			if (decodes("Humidity")) {
+				decoded.put("Humidity", frameBuffer.getByte(5));
+			}
 
-			decodeWindChillHeatIndex(decoded, frameBuffer);
+			if (decodes("HeatIndex")) {
+				decodeWindChillHeatIndex(decoded, frameBuffer);
+			}
 		}
 	}
 
@@ -269,51 +787,84 @@ public class WMR88InterfaceThread implements Runnable {
 	private void decodeRainfall(JSONObject decoded, WMRBuffer frameBuffer) {
 		decoded.put("Type", "Rainfall");
 		if (verifyChecksumAndLength(decoded, frameBuffer, DeviceParameters.Rainfall)) {
-			decoded.put("Battery", decodeBattery(frameBuffer.getNibble(0, 1)));
-
-			if (useMetric) {
-				// Convert 1/10th of an inch to mm 
-				decoded.put("RainfallRate",String.format("%.2f",frameBuffer.getWord(2)*0.254f));
-				decoded.put("RainfallHourly",String.format("%.2f",frameBuffer.getWord(4)*0.254f));
-				decoded.put("RainfallDaily",String.format("%.2f",frameBuffer.getWord(6)*0.254f));
-				decoded.put("RainfallSinceReset",String.format("%.2f",frameBuffer.getWord(8)*0.254f));
-			} else {
-				// units are 1/10th of an inch, convert to inches
-				decoded.put("RainfallRate",String.format("%.1f",frameBuffer.getWord(2)/10f));
-				decoded.put("RainfallHourly",String.format("%.1f",frameBuffer.getWord(4)/10f));
-				decoded.put("RainfallDaily",String.format("%.1f",frameBuffer.getWord(6)/10f));
-				decoded.put("RainfallSinceReset",String.format("%.1f",frameBuffer.getWord(8)/10f));
+			if (decodes("Battery")) {
+				decoded.put("Battery", decodeBattery(frameBuffer.getNibble(0, 1)));
 			}
 
-			dataDecodeClockField(decoded, frameBuffer, 10, false);
+			decodeRainfallAmount(decoded, frameBuffer, "RainfallRate", 2);
+			decodeRainfallAmount(decoded, frameBuffer, "RainfallHourly", 4);
+			decodeRainfallAmount(decoded, frameBuffer, "RainfallDaily", 6);
+			decodeRainfallAmount(decoded, frameBuffer, "RainfallSinceReset", 8);
+
+			if (decodes("DateTime") || decodes("Timestamp")) {
+				dataDecodeClockField(decoded, frameBuffer, 10, false);
+			}
 		}
 	}
 	
+	private void decodeRainfallAmount(JSONObject decoded, WMRBuffer frameBuffer, String field, int bytePos) {
+		if (!decodes(field)) {
+			return;
+		}
+		if (useMetric) {
+			// Convert 1/10th of an inch to mm 
+			decoded.put(field, String.format("%.2f", frameBuffer.getWord(bytePos) * 0.254f));
+		} else {
+			// units are 1/10th of an inch, convert to inches
+			decoded.put(field, formatTenths(frameBuffer.getWord(bytePos)));
+		}
+	}
+
 	private void decodeAnemometer(JSONObject decoded, WMRBuffer frameBuffer) {
 		decoded.put("Type", "Anemometer");
 		if (verifyChecksumAndLength(decoded, frameBuffer, DeviceParameters.Anemometer)) {
-			decoded.put("Battery", decodeBattery(frameBuffer.getNibble(0, 1)));
+			if (decodes("Battery")) {
+				decoded.put("Battery", decodeBattery(frameBuffer.getNibble(0, 1)));
+			}
 
 			int windDirection = frameBuffer.getByte(2) % 16;
-			decoded.put("WindVectorDegrees", windDirection * 360 / 16);
-			decoded.put("WindVectorDescription", DIRECTION_DESCRIPTION[windDirection]);
+			if (decodes("WindVectorDegrees")) {
+				decoded.put("WindVectorDegrees", windDirection * 360 / 16);
+			}
+			if (decodes("WindVectorDescription")) {
+				decoded.put("WindVectorDescription", DIRECTION_DESCRIPTION[windDirection]);
+			}
 
-			decoded.put("WindGust", String.format("%.1f", frameBuffer.getNibbles(4,0,3) / 10.0f));
+			if (decodes("WindGust")) {
+				decoded.put("WindGust", formatTenths(frameBuffer.getNibbles(4,0,3)));
+			}
 			
-			decoded.put("WindAverage", String.format("%.1f", frameBuffer.getNibbles(5,1,3) / 10.0f));
+			if (decodes("WindAverage")) {
+				decoded.put("WindAverage", formatTenths(frameBuffer.getNibbles(5,1,3)));
+			}
 
+			if (!decodes("WindChill")) {
+				return;
+			}
 			int chillSign = frameBuffer.getByte(8) / 16; // get wind chill sign nibble
 			boolean doWeHaveWindchill = (chillSign & 0x2) == 0;// get wind chill flag
 			if (doWeHaveWindchill) {
 				chillSign = ((chillSign / 8) == 0) ? +1 : -1; // Nibble determines if windchill is positive or negative.
-				float windChill = chillSign * frameBuffer.getByte(7);
-				decoded.put("WindChill", String.format("%.1f", windChill));
+				decoded.put("WindChill", formatTenths(chillSign * frameBuffer.getByte(7) * 10));
 			}
 		}
 	}
 
 
 
+	/**
+	 * Format a number of tenths the way String.format("%.1f") formats the value,
+	 * without going through a Formatter for every field of every frame.
+	 */
+	private String formatTenths(int tenths) {
+		int magnitude = Math.abs(tenths);
+		StringBuilder text = new StringBuilder(8);
+		if (tenths < 0) {
+			text.append('-');
+		}
+		return text.append(magnitude / 10).append(decimalSeparator).append(magnitude % 10).toString();
+	}
+
 	private int getSign(int signCode) {
 		return (signCode == 0 ? +1 : -1); // return sign code
 	}
@@ -327,7 +878,43 @@ public class WMR88InterfaceThread implements Runnable {
 		return (0.5555f * (fahrenheit - 32.0f));
 	}
 
-	private void parseStationData() throws IOException {
+	/**
+	 * Read a decimal value of a reading. Most are strings formatted with the
+	 * default locale, so the decimal separator may be a comma whatever the
+	 * locale of whoever reads them.
+	 *
+	 * @throws NumberFormatException if the value isn't a number
+	 */
+	public static double decimalValue(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		return Double.parseDouble(value.toString().trim().replace(',', '.'));
+	}
+
+	/**
+	 * @return the decimal value of the field (see decimalValue), NaN if the
+	 *         reading doesn't have it or it isn't a number
+	 */
+	public static double decimalValue(JSONObject reading, String field) {
+		Object value = reading.opt(field);
+		if (value == null) {
+			return Double.NaN;
+		}
+		try {
+			return decimalValue(value);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Separate the next complete frame out of the station buffer into the given
+	 * buffer.
+	 * 
+	 * @return false if the station buffer doesn't hold a complete frame yet
+	 */
+	private boolean nextStationFrame(WMRBuffer frameBuffer) {
 		int startDelimiter = getFrameDelimiterPosition(0);
 
 		if (startDelimiter != -1) {
@@ -339,14 +926,33 @@ public class WMR88InterfaceThread implements Runnable {
 
 					// Separate out the current frame, and all data through it's end from
 					// stationBuffer
-					WMRBuffer frameBuffer = new WMRBuffer(stationBuffer.subList(startDelimiter, finishDelimiter));
-					stationBuffer.subList(0, finishDelimiter).clear();
+					int frameLength = finishDelimiter - startDelimiter;
+					if (frameBytes.length < frameLength) {
+						frameBytes = new byte[frameLength];
+					}
+					stationBuffer.copyTo(startDelimiter, finishDelimiter, frameBytes);
+					frameBuffer.copyFrom(frameBytes, frameLength);
+					stationBuffer.removeLeading(finishDelimiter);
+
+					if (WMR88Events.FRAME_ASSEMBLED.isEnabled()) {
+						WMR88Events.FrameAssembled frameEvent = new WMR88Events.FrameAssembled();
+						if (frameEvent.shouldCommit()) {
+							frameEvent.sensorId = frameBuffer.size() > 1 ? frameBuffer.getByte(1) : -1;
+							frameEvent.length = frameBuffer.size();
+							frameEvent.commit();
+						}
+					}
 
-					analyseSensorDataFrame(frameBuffer);
-				} else
+					return true;
+				} else {
 					log.error("Empty frame received");
+					// Drop the leading delimiter so the following frame can be found
+					stationBuffer.removeLeading(startDelimiter);
+					return nextStationFrame(frameBuffer);
+				}
 			}
 		}
+		return false;
 	}
 
 	/**
@@ -367,34 +973,32 @@ public class WMR88InterfaceThread implements Runnable {
 
 
 	private void stationCloseNoThrow() {
-		if (hidDevice != null) {
+		if (reportSource != null) {
 			try {
-				hidDevice.close();
+				reportSource.close();
 			} catch (IOException e) {
-				log.error("Error closing hidDevice", e);
+				log.error("Error closing report source", e);
 			}
 		}
 	}
 
-	private HIDDevice stationOpen() throws IOException {
-		return (hidManager.openById(STATION_VENDOR, STATION_PRODUCT, null));
-	}
-
 	private boolean verifyChecksumAndLength(JSONObject decoded, WMRBuffer frameBuffer, DeviceParameters dev) {
 		String error = "";
 		if (frameBuffer.size() != dev.len) {
 			if (frameBuffer.size() > dev.len) {
-				log.debug("Truncating oversized frame.  Was : " + frameBuffer.size() + " expected " + dev.len);
+				if (log.isDebugEnabled()) {
+					log.debug("Truncating oversized frame.  Was : " + frameBuffer.size() + " expected " + dev.len);
+				}
 				
 				// Our frame is too big, try truncating the frame and see if it processes
 
 				// Return extra data to the buffer, sometimes it begins with an FF, 
 				// so remove those and send it back to be processed if it's relevant data
 				int start = dev.len;
-				while (frameBuffer.getByte(start) == FRAME_BYTE_DELIMITER) {
+				while (start < frameBuffer.size() && frameBuffer.getByte(start) == FRAME_BYTE_DELIMITER) {
 					start++;
 				}
-				stationBuffer.prepend(frameBuffer.subList(start, frameBuffer.size()));
+				stationBuffer.prepend(frameBuffer, start, frameBuffer.size());
 
 				// Truncate to expected length
 				frameBuffer.subList(dev.len, frameBuffer.size()).clear();
@@ -416,7 +1020,14 @@ public class WMR88InterfaceThread implements Runnable {
 			}
 
 			if (expected != actual) {
-				error += "Invalid [E:" + String.format("%04X", expected) + ",A:" + String.format("%04X", actual) + "] ";
+				WMR88Events.ChecksumFailure checksumEvent = new WMR88Events.ChecksumFailure();
+				if (checksumEvent.shouldCommit()) {
+					checksumEvent.sensorId = Byte.toUnsignedInt(dev.id);
+					checksumEvent.expected = expected;
+					checksumEvent.actual = actual;
+					checksumEvent.commit();
+				}
+				error += "Invalid [E:" + WMRBuffer.toHex(expected, 4) + ",A:" + WMRBuffer.toHex(actual, 4) + "] ";
 				decoded.put("FrameDump", frameBuffer.toStringAndLength());
 			}
 		}
@@ -433,14 +1044,64 @@ public class WMR88InterfaceThread implements Runnable {
 	 */
 	private void stationDataRequest() throws IOException {
 		log.info("Requested weather station data");
-		hidDevice.write(STATION_INITIALISATION_WMR200);
-		hidDevice.write(STATION_REQUEST_WMR200);
+		if (commandWriter != null) {
+			commandWriter.write(STATION_INITIALISATION_WMR200);
+			commandWriter.write(STATION_REQUEST_WMR200);
+		} else {
+			reportSource.write(STATION_INITIALISATION_WMR200);
+			reportSource.write(STATION_REQUEST_WMR200);
+		}
 	}
 
 	public boolean isRunning() {
 		return running;
 	}
 
+	/**
+	 * @return the decoder thread, once started, followed by the threads of the
+	 *         callbacks that currently have one, for monitoring them
+	 */
+	public List<Thread> getPipelineThreads() {
+		List<Thread> threads = new ArrayList<>();
+		Thread decoder = decoderThread;
+		if (decoder != null) {
+			threads.add(decoder);
+		}
+		synchronized (sinks) {
+			for (SinkStage sink : sinks) {
+				addThread(threads, sink);
+			}
+			for (FrameSinkStage frameSink : frameSinks) {
+				addThread(threads, frameSink);
+			}
+		}
+		return threads;
+	}
+
+	private void addThread(List<Thread> threads, PipelineStage<?> stage) {
+		Thread thread = stage.getThread();
+		if (thread != null) {
+			threads.add(thread);
+		}
+	}
+
+	/**
+	 * @return milliseconds from JVM start until the first valid frame was decoded,
+	 *         or -1 if none has been yet
+	 */
+	public long getTimeToFirstFrameMillis() {
+		long firstFrame = firstFrameMillis;
+		return firstFrame == 0 ? -1 : firstFrame - ManagementFactory.getRuntimeMXBean().getStartTime();
+	}
+
+	/**
+	 * Ask the thread to finish, readings already read from the station are still
+	 * delivered before the sinks shut down.
+	 */
+	public void stop() {
+		running = false;
+	}
+
 	public void setTimezone(TimeZone tz) {
 		c.setTimeZone(tz);
 		overrideTimezone = true;
@@ -460,8 +1121,180 @@ public class WMR88InterfaceThread implements Runnable {
 		this.useMetric = useMetric;
 	}
 
+	/**
+	 * Replace all registered callbacks with this one (or none if null).
+	 */
 	public void setCallback(WMR88Callback callback) {
-		this.callback = callback;
+		List<SinkStage> replaced = new ArrayList<>(sinks);
+		sinks.removeAll(replaced);
+		if (callback != null) {
+			addCallback(callback);
+		} else {
+			subscriptionsChanged();
+		}
+		cancelStages(replaced);
+	}
+
+	/**
+	 * Register an additional callback, each callback receives every reading on its
+	 * own thread once the interface thread is running.
+	 */
+	public void addCallback(WMR88Callback callback) {
+		addCallback(callback, sinkBufferSize, sinkBatchSize, new Subscription());
+	}
+
+	/**
+	 * Register an additional callback that only receives readings from these
+	 * sensor types (DeviceParameters.INVALID for invalid frames). Readings no
+	 * callback wants are not decoded at all.
+	 */
+	public void addCallback(WMR88Callback callback, Set<DeviceParameters> sensors) {
+		Subscription subscription = new Subscription();
+		if (sensors != null) {
+			subscription.setSensors(sensors);
+		}
+		addCallback(callback, subscription);
+	}
+
+	/**
+	 * Register an additional callback that only receives the sensor types,
+	 * channels and fields it subscribes to. Changes to the subscription after
+	 * registering aren't seen.
+	 */
+	public void addCallback(WMR88Callback callback, Subscription subscription) {
+		addCallback(callback, sinkBufferSize, sinkBatchSize, subscription);
+	}
+
+	/**
+	 * Register an additional callback with its own queue size and the maximum
+	 * number of readings it takes from that queue at a time.
+	 */
+	public void addCallback(WMR88Callback callback, int bufferSize, int batchSize) {
+		addCallback(callback, bufferSize, batchSize, new Subscription());
+	}
+
+	/**
+	 * Register an additional callback with its own queue sizes and subscription.
+	 */
+	public void addCallback(WMR88Callback callback, int bufferSize, int batchSize, Subscription subscription) {
+		addStage(sinks, new SinkStage(callback, bufferSize, batchSize, subscription));
+		subscriptionsChanged();
+	}
+
+	/**
+	 * Unregister a callback, readings still queued for it are dropped.
+	 */
+	public void removeCallback(WMR88Callback callback) {
+		List<SinkStage> removed = new ArrayList<>();
+		for (SinkStage sink : sinks) {
+			if (sink.getCallback() == callback) {
+				removed.add(sink);
+			}
+		}
+		sinks.removeAll(removed);
+		subscriptionsChanged();
+		cancelStages(removed);
+	}
+
+	/**
+	 * Register a callback for raw frames, each frame callback receives every
+	 * frame, checked but not decoded, on its own thread once the interface thread
+	 * is running.
+	 */
+	public void addFrameCallback(WMR88FrameCallback callback) {
+		addFrameCallback(callback, new Subscription());
+	}
+
+	/**
+	 * Register a callback for the raw frames of the sensor types and channels it
+	 * subscribes to.
+	 */
+	public void addFrameCallback(WMR88FrameCallback callback, Subscription subscription) {
+		if (freeFrameViews == null) {
+			freeFrameViews = new ArrayBlockingQueue<>(framePoolSize);
+		}
+		addStage(frameSinks, new FrameSinkStage(callback, sinkBufferSize, sinkBatchSize, subscription));
+	}
+
+	/**
+	 * Unregister a frame callback, frames still queued for it are released.
+	 */
+	public void removeFrameCallback(WMR88FrameCallback callback) {
+		List<FrameSinkStage> removed = new ArrayList<>();
+		for (FrameSinkStage frameSink : frameSinks) {
+			if (frameSink.getCallback() == callback) {
+				removed.add(frameSink);
+			}
+		}
+		frameSinks.removeAll(removed);
+		cancelStages(removed);
+	}
+
+	/**
+	 * Most frame views shared between the frame callbacks at any time, frames
+	 * arriving while all of them are held are dropped. Only takes effect before
+	 * the first frame callback is added.
+	 */
+	public void setFramePoolSize(int framePoolSize) {
+		this.framePoolSize = framePoolSize;
+	}
+
+	/**
+	 * Size the queues and the frame pool for a small fixed heap, or back to the
+	 * defaults. Call it before adding callbacks and before any of the other
+	 * buffer setters, which it overrides.
+	 * 
+	 * In low memory mode, with only frame callbacks registered, decoding allocates
+	 * next to nothing once running (see README.md). JSON callbacks still allocate
+	 * their readings.
+	 */
+	public void setLowMemory(boolean lowMemory) {
+		int bufferSize = lowMemory ? LOW_MEMORY_BUFFER_SIZE : DEFAULT_BUFFER_SIZE;
+		int batchSize = lowMemory ? LOW_MEMORY_BATCH_SIZE : DEFAULT_BATCH_SIZE;
+		setReportBuffer(bufferSize, batchSize);
+		setSinkBuffer(bufferSize, batchSize);
+		setFramePoolSize(bufferSize);
+	}
+
+	/**
+	 * Size of the queue of raw USB reports between the reader and the decoder, and
+	 * the maximum number of reports the decoder takes from it at a time.
+	 */
+	public void setReportBuffer(int bufferSize, int batchSize) {
+		this.reportBufferSize = bufferSize;
+		this.reportBatchSize = batchSize;
+	}
+
+	/**
+	 * Default queue and batch sizes for callbacks registered after this call.
+	 */
+	public void setSinkBuffer(int bufferSize, int batchSize) {
+		this.sinkBufferSize = bufferSize;
+		this.sinkBatchSize = batchSize;
+	}
+
+	/**
+	 * Flight recording to dump when the reader or decoder fails, the caller is
+	 * responsible for starting it.
+	 */
+	public void setFlightRecorder(StationFlightRecorder flightRecorder) {
+		this.flightRecorder = flightRecorder;
+	}
+
+	/**
+	 * Read station reports from somewhere other than the local USB device, for
+	 * example a StationSimulator.
+	 */
+	public void setReportSource(WMR88ReportSource reportSource) {
+		this.reportSource = reportSource;
+	}
+
+	/**
+	 * Send commands here instead of to the report source, for reports decoded with
+	 * decodeReport rather than read by the thread.
+	 */
+	void setCommandWriter(StationCommandWriter commandWriter) {
+		this.commandWriter = commandWriter;
 	}
 
 	public void setReturnInvalidFrames(boolean returnInvalidFrames) {
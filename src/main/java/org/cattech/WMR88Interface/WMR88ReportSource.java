@@ -0,0 +1,28 @@
+package org.cattech.WMR88Interface;
+
+import java.io.IOException;
+
+/**
+ * Where the interface thread gets its 9 byte station reports from, the USB
+ * device by default (HIDReportSource).
+ * 
+ * Each report starts with the number of data bytes that follow, as described
+ * in WMRBuffer.append().
+ */
+public interface WMR88ReportSource {
+	abstract void open() throws IOException;
+
+	/**
+	 * Read one report into the buffer, waiting at most timeoutMs for it.
+	 * 
+	 * @return the number of bytes read, 0 if no report arrived in time
+	 */
+	abstract int readTimeout(byte[] buffer, int timeoutMs) throws IOException;
+
+	/**
+	 * Send a command report to the station.
+	 */
+	abstract void write(byte[] data) throws IOException;
+
+	abstract void close() throws IOException;
+}
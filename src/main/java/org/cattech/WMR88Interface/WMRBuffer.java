@@ -8,18 +8,20 @@ import org.apache.logging.log4j.Logger;
 
 public class WMRBuffer extends ArrayList<Byte> {
 	private static final long serialVersionUID = 1L;
-	Logger log = LogManager.getLogger(WMR88InterfaceThread.class);
+	// Static, a buffer is created for every frame
+	static Logger log = LogManager.getLogger(WMR88InterfaceThread.class);
 
 	public WMRBuffer() {
 		this.clear();
 	}
 
 	public WMRBuffer(List<Byte> subList) {
-		this.clear();
+		super(subList.size());
 		this.append(subList);
 	}
 
 	public WMRBuffer(byte[] arrFF) {
+		super(arrFF.length);
 		for (byte b : arrFF) {
 			this.add(b);
 		}
@@ -35,7 +37,9 @@ public class WMRBuffer extends ArrayList<Byte> {
 	}
 
 	private void debugDumpBuffer(String string, WMRBuffer data) {
-		log.debug(string + data.toString());
+		if (log.isDebugEnabled()) {
+			log.debug(string + data.toString());
+		}
 	}
 
 	private void append(List<Byte> subList) {
@@ -58,6 +62,24 @@ public class WMRBuffer extends ArrayList<Byte> {
 		}
 	}
 
+	/**
+	 * Replace the contents with the first length bytes of an array.
+	 */
+	public void copyFrom(byte[] source, int length) {
+		clear();
+		for (int i = 0; i < length; i++) {
+			// Byte.valueOf caches every byte, so this doesn't allocate
+			add(Byte.valueOf(source[i]));
+		}
+	}
+
+	/**
+	 * Remove the first count bytes.
+	 */
+	public void removeLeading(int count) {
+		removeRange(0, count);
+	}
+
 	public void prepend(List<Byte> data) {
 		int offset = 0;
 		for (Byte b : data) {
@@ -65,19 +87,33 @@ public class WMRBuffer extends ArrayList<Byte> {
 		}
 	}
 
+	static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * @return the low digits of the value in upper case hex, as String.format("%0nX")
+	 */
+	static String toHex(int value, int digits) {
+		char[] hex = new char[digits];
+		for (int i = digits - 1; i >= 0; i--) {
+			hex[i] = HEX_DIGITS[value & 0xF];
+			value >>>= 4;
+		}
+		return new String(hex);
+	}
+
 	private String implToStringFormats(boolean hexPrefix) {
-		String result = "";
-		for (byte b : this) {
-			if (!result.equals("")) {
-				result += ",";
+		StringBuilder result = new StringBuilder(size() * (hexPrefix ? 5 : 3));
+		for (int i = 0; i < size(); i++) {
+			if (i > 0) {
+				result.append(',');
 			}
 			if (hexPrefix) {
-				result += String.format("0x%02X", b);
-			} else {
-				result += String.format("%02X", b);
+				result.append("0x");
 			}
+			int b = getByte(i);
+			result.append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
 		}
-		return result;
+		return result.toString();
 	}
 
 	public String toJavaArray() {
@@ -0,0 +1,138 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.cattech.WMR88Interface.Alert;
+import org.cattech.WMR88Interface.AlertEngine;
+import org.cattech.WMR88Interface.WMR88InterfaceThread;
+import org.cattech.WMR88Interface.WMRBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class testAlertEngine {
+	private static final String WIND = "{\"Type\":\"Anemometer\",\"WindGust\":\"%.1f\",\"WindAverage\":\"1.0\",\"Battery\":\"OK\"}";
+	private static final String THERMO = "{\"Type\":\"Thermohygrometer\",\"SensorNumber\":%d,\"Temperature\":\"20.0\",\"Battery\":\"%s\"}";
+	private static final String PRESSURE = "{\"Type\":\"Barometer\",\"pressureRelative\":%d}";
+	private static final long MINUTE = 60_000L;
+
+	private AlertEngine engine;
+	private List<Alert> alerts;
+
+	@Before
+	public void createEngine() {
+		engine = new AlertEngine();
+		alerts = new ArrayList<>();
+		engine.setAlertListener(alerts::add);
+	}
+
+	@Test
+	public void testHysteresisStopsAlertStorm() {
+		engine.addRule("gale", "Anemometer.WindGust > 40 clear 35");
+
+		double[] gusts = { 30, 41, 39, 42, 38, 36, 34, 41 };
+		for (int i = 0; i < gusts.length; i++) {
+			engine.evaluate(i * MINUTE, String.format(WIND, gusts[i]));
+		}
+
+		// Raised at 41, held while above 35, cleared at 34, raised again at 41
+		assertEquals(3, alerts.size());
+		assertTrue(alerts.get(0).isRaised());
+		assertEquals("41.0", alerts.get(0).getValue());
+		assertFalse(alerts.get(1).isRaised());
+		assertEquals("34.0", alerts.get(1).getValue());
+		assertTrue(alerts.get(2).isRaised());
+	}
+
+	@Test
+	public void testDecimalCommaLocale() throws IOException {
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			// Decoded as 20,8 degrees
+			String reading = new WMR88InterfaceThread()
+					.analyseSensorDataFrame(new WMRBuffer(new byte[] { 0x10, 0x42, (byte) 0x80, (byte) 0xD0, 0x00, 0x1C, 0x14, 0x00, 0x00, 0x20, (byte) 0xF2, 0x01 })).toString();
+			engine.addRule("warm", "Thermohygrometer.Temperature > 10");
+			engine.addRule("hot", "Thermohygrometer.Temperature > 20.9");
+			engine.evaluate(0, reading);
+		} finally {
+			Locale.setDefault(locale);
+		}
+
+		assertEquals(1, alerts.size());
+		assertEquals("warm", alerts.get(0).getRule().getName());
+		assertEquals("20,8", alerts.get(0).getValue());
+	}
+
+	@Test
+	public void testRepeatWhileRaised() {
+		engine.addRule("gale", "Anemometer.WindGust >= 40 repeat 10m");
+
+		for (int i = 0; i < 25; i++) {
+			engine.evaluate(i * MINUTE, String.format(WIND, 45.0));
+		}
+
+		// At 0, 10 and 20 minutes
+		assertEquals(3, alerts.size());
+	}
+
+	@Test
+	public void testTextRuleOnAnySensorKeptPerSensor() {
+		engine.addRule("battery", "*.Battery == Low");
+
+		engine.evaluate(0, String.format(THERMO, 1, "Low"));
+		engine.evaluate(1, String.format(THERMO, 2, "Low"));
+		engine.evaluate(2, String.format(THERMO, 1, "Low"));
+		engine.evaluate(3, String.format(THERMO, 1, "OK"));
+
+		assertEquals(3, alerts.size());
+		assertEquals(1, alerts.get(0).getChannel());
+		assertEquals(2, alerts.get(1).getChannel());
+		assertFalse(alerts.get(2).isRaised());
+		assertEquals(1, alerts.get(2).getChannel());
+	}
+
+	@Test
+	public void testPressureDropOverWindow() {
+		engine.addRule("storm", "Barometer.pressureRelative drop 4 in 3h");
+
+		// Falling a hPa an hour, then steady
+		int[] pressures = { 1012, 1011, 1010, 1009, 1008, 1008, 1008, 1008, 1008 };
+		for (int hour = 0; hour < pressures.length; hour++) {
+			engine.evaluate(hour * 60 * MINUTE, String.format(PRESSURE, pressures[hour]));
+		}
+
+		// Never 4 within 3 hours on the way down, then it falls out of the window
+		assertEquals(0, alerts.size());
+
+		engine.evaluate(9 * 60 * MINUTE, String.format(PRESSURE, 1006));
+		engine.evaluate(10 * 60 * MINUTE, String.format(PRESSURE, 1003));
+		assertEquals(1, alerts.size());
+		assertEquals("5.0", alerts.get(0).getValue());
+	}
+
+	@Test
+	public void testOnlyRelevantRulesEvaluated() {
+		for (int i = 0; i < 100; i++) {
+			engine.addRule("cold" + i, "Thermohygrometer[" + i + "].Temperature < 0");
+		}
+		engine.addRule("gale", "Anemometer.WindGust > 40");
+
+		engine.evaluate(0, String.format(WIND, 10.0));
+		assertEquals(1, engine.getEvaluations());
+
+		engine.evaluate(1, String.format(THERMO, 3, "OK"));
+		assertEquals(2, engine.getEvaluations());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadRuleRejected() {
+		engine.addRule("bad", "Anemometer.WindGust is windy");
+	}
+}
@@ -0,0 +1,145 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.cattech.WMR88Interface.StationSimulator;
+import org.cattech.WMR88Interface.WMR88InterfaceThread;
+import org.cattech.WMR88Interface.WMRBuffer;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Fails when decoding starts allocating more than it should. Allocation is
+ * measured with the JVM's per thread allocation counters, after enough frames
+ * for the JIT to have compiled the decoder.
+ *
+ * Decoding to JSON readings has a budget per sensor type, the frame pipeline
+ * in low memory mode should allocate next to nothing. The budgets are roughly
+ * one and a half times what was measured when they were set, raise them only
+ * knowingly.
+ */
+public class testAllocationBudget {
+	private static final int WARMUP_FRAMES = 20_000;
+	private static final int MEASURED_FRAMES = 20_000;
+	// The pipeline's threads take longer to settle
+	private static final int PIPELINE_WARMUP_FRAMES = 50_000;
+	// Frame pool lock contention still allocates now and then
+	private static final long PIPELINE_BUDGET_BYTES = 64;
+
+	// Frames taken from testFrameDecode
+	private static final byte[] ANEMOMETER = { 0x00, 0x48, 0x0A, 0x0C, 0x25, 0x00, 0x00, 0x00, 0x20, (byte) 0xA3, 0x00 };
+	private static final byte[] BAROMETER = { 0, 70, -38, 19, -38, 3, 16, 2 };
+	private static final byte[] CLOCK = { -112, 96, 3, 16, 46, 18, 12, 1, 21, 2, 103, 1 };
+	private static final byte[] RAINFALL = { 0x00, 0x41, 0x00, (byte) 0xB0, 0x09, 0x00, 0x00, 0x00, (byte) 0xA8, 0x00, 0x28, 0x0C, 0x12, 0x06, 0x0B, (byte) 0xF9, 0x01 };
+	private static final byte[] THERMOHYGROMETER = { 0x10, 0x42, (byte) 0xD0, (byte) 0xD1, 0x00, 0x62, (byte) 0xD2, 0x00, 0x00, 0x20, 0x47, 0x03 };
+	private static final byte[] UV = { 0x00, 0x47, 0x01, 0x05, 0x4D, 0x00 };
+	private static final byte[] INVALID = { 0, 0, 32, -44, 1, -1, 0, -1, -112, 96, 3, 16, 43, 18, 12, 1, 21, 2, 100, 1 };
+
+	private static com.sun.management.ThreadMXBean threads;
+
+	@BeforeClass
+	public static void setUp() {
+		Configurator.setRootLevel(Level.WARN);
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@Test
+	public void testAnemometer() throws IOException {
+		assertDecodeWithin("Anemometer", ANEMOMETER, 1000);
+	}
+
+	@Test
+	public void testBarometer() throws IOException {
+		assertDecodeWithin("Barometer", BAROMETER, 700);
+	}
+
+	@Test
+	public void testClock() throws IOException {
+		assertDecodeWithin("Clock", CLOCK, 1250);
+	}
+
+	@Test
+	public void testRainfall() throws IOException {
+		assertDecodeWithin("Rainfall", RAINFALL, 1900);
+	}
+
+	@Test
+	public void testThermohygrometer() throws IOException {
+		assertDecodeWithin("Thermohygrometer", THERMOHYGROMETER, 1200);
+	}
+
+	@Test
+	public void testUV() throws IOException {
+		assertDecodeWithin("UV", UV, 500);
+	}
+
+	@Test
+	public void testInvalidFrame() throws IOException {
+		assertDecodeWithin("Invalid", INVALID, 1200);
+	}
+
+	@Test(timeout = 60_000)
+	public void testLowMemoryFramePipeline() throws InterruptedException {
+		StationSimulator simulator = new StationSimulator(3, 11);
+		simulator.setFramesPerSecond(10_000);
+		WMR88InterfaceThread wThread = new WMR88InterfaceThread();
+		wThread.setLowMemory(true);
+		wThread.setReportSource(simulator);
+		AtomicLong frames = new AtomicLong();
+		wThread.addFrameCallback(frame -> {
+			frames.incrementAndGet();
+			frame.release();
+		});
+		Thread thread = new Thread(wThread);
+		thread.start();
+
+		Thread decoder = null;
+		while (decoder == null) {
+			Thread.sleep(10);
+			for (Thread candidate : wThread.getPipelineThreads()) {
+				if (candidate.getName().equals("WMR88 Decoder")) {
+					decoder = candidate;
+				}
+			}
+		}
+		while (frames.get() < PIPELINE_WARMUP_FRAMES) {
+			Thread.sleep(10);
+		}
+		long before = allocatedBytes(decoder);
+		long framesBefore = frames.get();
+		while (frames.get() < framesBefore + MEASURED_FRAMES) {
+			Thread.sleep(10);
+		}
+		long perFrame = (allocatedBytes(decoder) - before) / (frames.get() - framesBefore);
+		wThread.stop();
+		thread.join();
+
+		assertTrue("Decoder allocated " + perFrame + " bytes per frame in low memory mode, budget " + PIPELINE_BUDGET_BYTES, perFrame <= PIPELINE_BUDGET_BYTES);
+	}
+
+	private void assertDecodeWithin(String name, byte[] frame, long budgetBytes) throws IOException {
+		WMR88InterfaceThread it = new WMR88InterfaceThread();
+		for (int i = 0; i < WARMUP_FRAMES; i++) {
+			it.analyseSensorDataFrame(new WMRBuffer(frame));
+		}
+		long before = allocatedBytes(Thread.currentThread());
+		for (int i = 0; i < MEASURED_FRAMES; i++) {
+			it.analyseSensorDataFrame(new WMRBuffer(frame));
+		}
+		long perFrame = (allocatedBytes(Thread.currentThread()) - before) / MEASURED_FRAMES;
+		assertTrue(name + " allocated " + perFrame + " bytes per frame, budget " + budgetBytes, perFrame <= budgetBytes);
+	}
+
+	private long allocatedBytes(Thread thread) {
+		return threads.getThreadAllocatedBytes(thread.getId());
+	}
+}
@@ -0,0 +1,53 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import org.cattech.WMR88Interface.ChannelOutputSink;
+import org.junit.Test;
+
+public class testChannelOutputSink {
+
+	@Test
+	public void testNdjsonIsBufferedUntilFlushed() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChannelOutputSink sink = new ChannelOutputSink(Channels.newChannel(out), ChannelOutputSink.Format.NDJSON, 60_000);
+
+		// The first reading goes straight out, later ones wait for the interval
+		sink.receiveData("{\"Type\":\"UV\",\"UV_Index\":3}");
+		sink.receiveData("{\"Type\":\"UV\",\"UV_Index\":4}");
+		assertEquals("{\"Type\":\"UV\",\"UV_Index\":3}\n", out.toString("UTF-8"));
+
+		sink.close();
+		assertEquals("{\"Type\":\"UV\",\"UV_Index\":3}\n{\"Type\":\"UV\",\"UV_Index\":4}\n", out.toString("UTF-8"));
+	}
+
+	@Test
+	public void testBinaryFramesSpanBufferWrites() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChannelOutputSink sink = new ChannelOutputSink(Channels.newChannel(out), ChannelOutputSink.Format.BINARY, 60_000);
+
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			padding.append("xé");
+		}
+		int readings = 100;
+		for (int i = 0; i < readings; i++) {
+			sink.receiveData("{\"n\":" + i + ",\"pad\":\"" + padding + "\"}");
+		}
+		sink.close();
+
+		ByteBuffer written = ByteBuffer.wrap(out.toByteArray());
+		for (int i = 0; i < readings; i++) {
+			byte[] json = new byte[written.getInt()];
+			written.get(json);
+			assertEquals("{\"n\":" + i + ",\"pad\":\"" + padding + "\"}", new String(json, StandardCharsets.UTF_8));
+		}
+		assertEquals(0, written.remaining());
+	}
+}
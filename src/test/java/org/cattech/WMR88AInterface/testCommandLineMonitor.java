@@ -0,0 +1,33 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.cattech.WMR88Interface.CommandLineMonitor;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class testCommandLineMonitor {
+
+	@BeforeClass
+	public static void setLogging() {
+		Configurator.setRootLevel(Level.WARN);
+	}
+
+	@Test(timeout = 30_000)
+	public void testFrameLimitIsExact() throws IOException {
+		Path out = Files.createTempFile("testCommandLineMonitor", ".ndjson");
+		// The simulated station sends far faster than the monitor can stop
+		CommandLineMonitor.main(new String[] { "--simulate", "3", "--frames", "5", "--out", out.toString() });
+		assertEquals(5, Files.readAllLines(out).size());
+
+		Path buffered = Files.createTempFile("testCommandLineMonitor", ".ndjson");
+		CommandLineMonitor.main(new String[] { "--simulate", "--frames", "1", "--format", "ndjson", "--out", buffered.toString() });
+		assertEquals(1, Files.readAllLines(buffered).size());
+	}
+}
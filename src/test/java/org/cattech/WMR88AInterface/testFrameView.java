@@ -0,0 +1,122 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cattech.WMR88Interface.DeviceParameters;
+import org.cattech.WMR88Interface.FrameView;
+import org.cattech.WMR88Interface.WMR88InterfaceThread;
+import org.cattech.WMR88Interface.WMRBuffer;
+import org.junit.Test;
+
+public class testFrameView {
+
+	@Test
+	public void testFieldsReadFromFrame() throws IOException {
+		WMR88InterfaceThread it = new WMR88InterfaceThread();
+		List<String> values = new ArrayList<>();
+		it.addFrameCallback(frame -> {
+			assertEquals(DeviceParameters.Thermohygrometer, frame.getSensor());
+			assertEquals(0x42, frame.getSensorId());
+			assertTrue(frame.isChecksumValid());
+			values.add(frame.getTemperature() + " " + frame.getDewPoint() + " " + frame.getHumidity() + " " + frame.getChannel());
+			frame.release();
+		});
+
+		byte[] frame = { 0x10, 0x42, (byte) 0x80, (byte) 0xD0, 0x00, 0x1C, 0x14, 0x00, 0x00, 0x20, (byte) 0xF2, 0x01 };
+		it.analyseSensorDataFrame(new WMRBuffer(frame));
+
+		assertEquals("20.8 2.0 28 0", values.get(0));
+	}
+
+	@Test
+	public void testInvalidFramesForwardedUnchecked() throws IOException {
+		WMR88InterfaceThread it = new WMR88InterfaceThread();
+		List<byte[]> forwarded = new ArrayList<>();
+		it.addFrameCallback(frame -> {
+			assertFalse(frame.isChecksumValid());
+			byte[] copy = new byte[frame.length()];
+			frame.copyTo(copy, 0);
+			forwarded.add(copy);
+			try {
+				frame.getUVIndex();
+			} catch (IllegalStateException e) {
+				frame.release();
+			}
+		});
+
+		// UV frame with a bad checksum
+		byte[] frame = { 0x00, 0x47, 0x01, 0x05, 0x4E, 0x00 };
+		it.analyseSensorDataFrame(new WMRBuffer(frame));
+
+		assertEquals(1, forwarded.size());
+		assertEquals(0x4E, forwarded.get(0)[4]);
+	}
+
+	@Test
+	public void testToStringIsHex() throws IOException {
+		WMR88InterfaceThread it = new WMR88InterfaceThread();
+		List<String> shown = new ArrayList<>();
+		it.addFrameCallback(frame -> {
+			shown.add(frame.toString());
+			frame.release();
+		});
+
+		byte[] frame = { 0x10, 0x42, (byte) 0x80, (byte) 0xD0, 0x00, 0x1C, 0x14, 0x00, 0x00, 0x20, (byte) 0xF2, 0x01 };
+		it.analyseSensorDataFrame(new WMRBuffer(frame));
+
+		assertEquals("10,42,80,D0,00,1C,14,00,00,20,F2,01", shown.get(0));
+	}
+
+	@Test
+	public void testViewReusedOnceEverySinkReleases() throws IOException {
+		WMR88InterfaceThread it = new WMR88InterfaceThread();
+		List<FrameView> first = new ArrayList<>();
+		List<FrameView> second = new ArrayList<>();
+		it.addFrameCallback(first::add);
+		it.addFrameCallback(second::add);
+
+		byte[] frame = { 0x00, 0x47, 0x01, 0x05, 0x4D, 0x00 };
+		it.analyseSensorDataFrame(new WMRBuffer(frame));
+		FrameView view = first.get(0);
+		assertSame(view, second.get(0));
+
+		// Still held by the second sink, so the next frame needs another view
+		view.release();
+		it.analyseSensorDataFrame(new WMRBuffer(frame));
+		assertFalse(first.get(1) == view);
+
+		second.get(0).release();
+		first.get(1).release();
+		second.get(1).release();
+		it.analyseSensorDataFrame(new WMRBuffer(frame));
+		assertTrue(first.get(2) == view || first.get(2) == first.get(1));
+		assertEquals(5, first.get(2).getUVIndex());
+	}
+
+	@Test
+	public void testFailingCallbackReleasesOnce() throws IOException {
+		WMR88InterfaceThread it = new WMR88InterfaceThread();
+		List<FrameView> received = new ArrayList<>();
+		it.addFrameCallback(frame -> {
+			received.add(frame);
+			frame.release();
+			throw new IllegalStateException("Failed after releasing");
+		});
+
+		// Releasing twice would throw here, or put the view back in the pool twice
+		byte[] frame = { 0x00, 0x47, 0x01, 0x05, 0x4D, 0x00 };
+		it.analyseSensorDataFrame(new WMRBuffer(frame));
+		it.analyseSensorDataFrame(new WMRBuffer(frame));
+		it.analyseSensorDataFrame(new WMRBuffer(frame));
+
+		assertEquals(3, received.size());
+		assertSame(received.get(0), received.get(2));
+	}
+}
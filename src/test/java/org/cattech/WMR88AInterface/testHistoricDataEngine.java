@@ -0,0 +1,256 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+
+import org.cattech.WMR88Interface.Alert;
+import org.cattech.WMR88Interface.AlertEngine;
+import org.cattech.WMR88Interface.DeviceParameters;
+import org.cattech.WMR88Interface.HistoricDataEngine;
+import org.cattech.WMR88Interface.HistoricDataEngine.Window;
+import org.cattech.WMR88Interface.QuantileSketch;
+import org.cattech.WMR88Interface.WMR88InterfaceThread;
+import org.cattech.WMR88Interface.WMRBuffer;
+import org.junit.Test;
+
+public class testHistoricDataEngine {
+	private static final String WIND = "{\"Type\":\"Anemometer\",\"WindGust\":\"%.1f\",\"WindAverage\":\"1.0\"}";
+
+	@Test
+	public void testDailySketchesMergeIntoMonth() throws IOException {
+		Path directory = Files.createTempDirectory("testHistoricDataEngine");
+		HistoricDataEngine engine = new HistoricDataEngine();
+		engine.setDirectory(directory);
+		// Only checkpoint as periods end, not once a simulated minute
+		engine.setCheckpointInterval(0);
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(2021, Calendar.JANUARY, 1, 0, 0, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		long start = calendar.getTimeInMillis();
+		// A reading a minute for ten days, gusts cycling 0 to 99.9
+		int readings = 10 * 24 * 60;
+		for (int i = 0; i < readings; i++) {
+			engine.record(start + i * 60_000L, String.format(WIND, (i % 1000) / 10.0));
+		}
+		assertEquals("20210110", engine.getPeriod(Window.DAY));
+		assertEquals(24 * 60, engine.getSketch(Window.DAY, DeviceParameters.Anemometer, -1, "WindGust").getCount());
+		engine.flush();
+
+		QuantileSketch month = engine.mergeStored(Window.DAY, DeviceParameters.Anemometer, -1, "WindGust", "20210101", "20210131");
+		assertEquals(readings, month.getCount());
+		assertEquals(99, month.getQuantile(0.99), 1.5);
+
+		QuantileSketch monthly = engine.mergeStored(Window.MONTH, DeviceParameters.Anemometer, -1, "WindGust", "202101", "202101");
+		assertEquals(readings, monthly.getCount());
+
+		QuantileSketch firstDay = engine.mergeStored(Window.DAY, DeviceParameters.Anemometer, -1, "WindGust", "20210101", "20210101");
+		assertEquals(24 * 60, firstDay.getCount());
+	}
+
+	@Test
+	public void testRestoreFromCheckpoint() throws IOException {
+		Path directory = Files.createTempDirectory("testHistoricDataEngine");
+		HistoricDataEngine engine = new HistoricDataEngine();
+		engine.setDirectory(directory);
+		HistoricDataEngine uninterrupted = new HistoricDataEngine();
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(2021, Calendar.JANUARY, 1, 0, 0, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		long start = calendar.getTimeInMillis();
+		// Two and a half hours of a reading every 10 seconds, then a restart
+		int readings = 900;
+		for (int i = 0; i < readings; i++) {
+			String reading = String.format(WIND, (i % 1000) / 10.0);
+			engine.record(start + i * 10_000L, reading);
+			uninterrupted.record(start + i * 10_000L, reading);
+		}
+		engine.checkpoint();
+
+		HistoricDataEngine restarted = new HistoricDataEngine();
+		restarted.setDirectory(directory);
+		assertTrue(restarted.restore());
+		assertEquals("2021010102", restarted.getPeriod(Window.HOUR));
+		for (int i = readings; i < 2 * readings; i++) {
+			String reading = String.format(WIND, (i % 1000) / 10.0);
+			restarted.record(start + i * 10_000L, reading);
+			uninterrupted.record(start + i * 10_000L, reading);
+		}
+
+		for (Window window : Window.values()) {
+			QuantileSketch expected = uninterrupted.getSketch(window, DeviceParameters.Anemometer, -1, "WindGust");
+			QuantileSketch actual = restarted.getSketch(window, DeviceParameters.Anemometer, -1, "WindGust");
+			assertEquals(window.name(), expected.getCount(), actual.getCount());
+			assertEquals(window.name(), expected.getMax(), actual.getMax(), 0);
+		}
+		assertEquals(2 * readings, restarted.getSketch(Window.DAY, DeviceParameters.Anemometer, -1, "WindGust").getCount());
+		// The hours that ended were stored once, by one engine or the other
+		restarted.flush();
+		QuantileSketch day = restarted.mergeStored(Window.HOUR, DeviceParameters.Anemometer, -1, "WindGust", "2021010100", "2021010123");
+		assertEquals(2 * readings, day.getCount());
+	}
+
+	@Test
+	public void testAlertStateRestoredFromCheckpoint() throws IOException {
+		Path directory = Files.createTempDirectory("testHistoricDataEngine");
+		HistoricDataEngine engine = new HistoricDataEngine();
+		engine.setDirectory(directory);
+		AlertEngine alertEngine = alertEngine(new ArrayList<>());
+		engine.setAlertEngine(alertEngine);
+		long start = 1_610_000_000_000L;
+		for (double gust : new double[] { 10, 41 }) {
+			String reading = String.format(WIND, gust);
+			engine.record(start, reading);
+			alertEngine.evaluate(start, reading);
+			start += 60_000;
+		}
+		engine.checkpoint();
+
+		List<Alert> alerts = new ArrayList<>();
+		HistoricDataEngine restarted = new HistoricDataEngine();
+		restarted.setDirectory(directory);
+		AlertEngine restartedAlerts = alertEngine(alerts);
+		restarted.setAlertEngine(restartedAlerts);
+		assertTrue(restarted.restore());
+		restartedAlerts.evaluate(start, String.format(WIND, 52.0));
+
+		// The gale was already raised, and the gust rose from 10 within the hour
+		assertEquals(1, alerts.size());
+		assertEquals("gusting", alerts.get(0).getRule().getName());
+	}
+
+	private AlertEngine alertEngine(List<Alert> alerts) {
+		AlertEngine alertEngine = new AlertEngine();
+		alertEngine.addRule("gale", "Anemometer.WindGust > 40 clear 35");
+		alertEngine.addRule("gusting", "Anemometer.WindGust rise 40 in 1h");
+		alertEngine.setAlertListener(alerts::add);
+		return alertEngine;
+	}
+
+	@Test
+	public void testCrashWhileStoringCountsOnce() throws IOException {
+		Path directory = Files.createTempDirectory("testHistoricDataEngine");
+		HistoricDataEngine engine = new HistoricDataEngine();
+		engine.setDirectory(directory);
+		engine.setCheckpointInterval(0);
+		long start = startOf2021();
+
+		// The first hour, a reading every 10 seconds
+		for (int i = 0; i < 360; i++) {
+			engine.record(start + i * 10_000L, String.format(WIND, i / 10.0));
+		}
+		// As checkpointed before the hour is stored
+		engine.checkpoint();
+		byte[] beforeStoring = Files.readAllBytes(directory.resolve("engine.checkpoint"));
+		engine.record(start + 360 * 10_000L, String.format(WIND, 36.0));
+		assertEquals(360, stored(engine, Window.HOUR, "2021010100").getCount());
+
+		// Crash before the checkpoint that follows storing, and store the hour again
+		Files.write(directory.resolve("engine.checkpoint"), beforeStoring);
+		HistoricDataEngine restarted = new HistoricDataEngine();
+		restarted.setDirectory(directory);
+		assertTrue(restarted.restore());
+		for (int i = 360; i < 720; i++) {
+			restarted.record(start + i * 10_000L, String.format(WIND, i / 10.0));
+		}
+		restarted.flush();
+		assertEquals(360, stored(restarted, Window.HOUR, "2021010100").getCount());
+		assertEquals(720, stored(restarted, Window.DAY, "20210101").getCount());
+
+		// Flushing again stores the same readings
+		restarted.flush();
+		assertEquals(720, stored(restarted, Window.DAY, "20210101").getCount());
+	}
+
+	@Test
+	public void testFlushedPeriodCarriesOnAfterRestart() throws IOException {
+		Path directory = Files.createTempDirectory("testHistoricDataEngine");
+		HistoricDataEngine engine = new HistoricDataEngine();
+		engine.setDirectory(directory);
+		long start = startOf2021();
+
+		for (int i = 0; i < 100; i++) {
+			engine.record(start + i * 10_000L, String.format(WIND, i / 10.0));
+		}
+		engine.flush();
+		// Still recording after flushing
+		engine.record(start + 100 * 10_000L, String.format(WIND, 10.0));
+		engine.flush();
+		assertEquals(101, stored(engine, Window.DAY, "20210101").getCount());
+
+		// Flushing left no checkpoint, the day carries on from what was stored
+		HistoricDataEngine restarted = new HistoricDataEngine();
+		restarted.setDirectory(directory);
+		assertFalse(restarted.restore());
+		for (int i = 101; i < 200; i++) {
+			restarted.record(start + i * 10_000L, String.format(WIND, i / 10.0));
+		}
+		assertEquals(200, restarted.getSketch(Window.DAY, DeviceParameters.Anemometer, -1, "WindGust").getCount());
+		restarted.flush();
+		assertEquals(200, stored(restarted, Window.DAY, "20210101").getCount());
+		assertEquals(200, stored(restarted, Window.MONTH, "202101").getCount());
+	}
+
+	@Test
+	public void testDecimalCommaLocale() throws IOException {
+		HistoricDataEngine engine = new HistoricDataEngine();
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			// Decoded as 20,8 degrees
+			String reading = new WMR88InterfaceThread()
+					.analyseSensorDataFrame(new WMRBuffer(new byte[] { 0x10, 0x42, (byte) 0x80, (byte) 0xD0, 0x00, 0x1C, 0x14, 0x00, 0x00, 0x20, (byte) 0xF2, 0x01 })).toString();
+			engine.record(startOf2021(), reading);
+		} finally {
+			Locale.setDefault(locale);
+		}
+
+		QuantileSketch day = engine.getSketch(Window.DAY, DeviceParameters.Thermohygrometer, 0, "Temperature");
+		assertEquals(1, day.getCount());
+		assertEquals(20.8, day.getMax(), 0.001);
+	}
+
+	@Test
+	public void testCorruptCheckpointIsIgnored() throws IOException {
+		Path directory = Files.createTempDirectory("testHistoricDataEngine");
+		HistoricDataEngine engine = new HistoricDataEngine();
+		engine.setDirectory(directory);
+		engine.record(System.currentTimeMillis(), String.format(WIND, 12.5));
+		engine.checkpoint();
+
+		Path checkpoint = directory.resolve("engine.checkpoint");
+		byte[] bytes = Files.readAllBytes(checkpoint);
+		bytes[bytes.length / 2] ^= 0x10;
+		Files.write(checkpoint, bytes);
+
+		HistoricDataEngine restarted = new HistoricDataEngine();
+		restarted.setDirectory(directory);
+		assertFalse(restarted.restore());
+		assertNull(restarted.getSketch(Window.DAY, DeviceParameters.Anemometer, -1, "WindGust"));
+
+		Files.delete(checkpoint);
+		assertFalse(restarted.restore());
+	}
+
+	private static long startOf2021() {
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(2021, Calendar.JANUARY, 1, 0, 0, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	private static QuantileSketch stored(HistoricDataEngine engine, Window window, String period) throws IOException {
+		return engine.mergeStored(window, DeviceParameters.Anemometer, -1, "WindGust", period, period);
+	}
+}
@@ -0,0 +1,146 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Calendar;
+import java.util.Locale;
+
+import org.cattech.WMR88Interface.DeviceParameters;
+import org.cattech.WMR88Interface.HistoryExport;
+import org.cattech.WMR88Interface.HistoryStore;
+import org.cattech.WMR88Interface.WMR88InterfaceThread;
+import org.cattech.WMR88Interface.WMRBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class testHistoryExport {
+	private static final String THERMO = "{\"Type\":\"Thermohygrometer\",\"SensorNumber\":%d,\"Temperature\":\"%d.5\",\"Humidity\":40,\"DewPoint\":\"2.0\"}";
+	private static final String WIND = "{\"Type\":\"Anemometer\",\"WindVectorDegrees\":225,\"WindGust\":\"%d.0\",\"WindAverage\":\"1.5\"}";
+	private static final long HOUR = 3600_000L;
+
+	private Path directory;
+	private long dayOne;
+
+	@Before
+	public void storeThreeDays() throws IOException {
+		directory = Files.createTempDirectory("testHistoryExport");
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(2021, Calendar.JANUARY, 12, 0, 0, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		dayOne = calendar.getTimeInMillis();
+
+		HistoryStore store = new HistoryStore(directory);
+		for (int hour = 0; hour < 72; hour++) {
+			long time = dayOne + hour * HOUR;
+			store.record(time, String.format(THERMO, hour % 2, hour));
+			store.record(time + 1, String.format(WIND, hour));
+			store.record(time + 2, "{\"Type\":\"Barometer\",\"Error\":\"Invalid\"}");
+		}
+		store.close();
+	}
+
+	@Test
+	public void testOneFileAndInvalidFramesSkipped() throws IOException {
+		assertEquals(3, Files.list(directory).count());
+
+		HistoryExport export = new HistoryExport(directory);
+		assertEquals(144, export.writeCsv(new StringWriter()));
+	}
+
+	@Test
+	public void testCsvProjectionAndTimeRange() throws IOException {
+		HistoryExport export = new HistoryExport(directory);
+		export.setSensors(DeviceParameters.Thermohygrometer);
+		export.setChannels(1);
+		export.setFields("Temperature");
+		// Crosses from the first day into the second
+		export.setTimeRange(dayOne + 20 * HOUR, dayOne + 27 * HOUR);
+
+		StringWriter csv = new StringWriter();
+		assertEquals(3, export.writeCsv(csv));
+
+		String expected = "Timestamp,Type,Channel,Temperature\n" //
+				+ (dayOne + 21 * HOUR) + ",Thermohygrometer,1,21.5\n" //
+				+ (dayOne + 23 * HOUR) + ",Thermohygrometer,1,23.5\n" //
+				+ (dayOne + 25 * HOUR) + ",Thermohygrometer,1,25.5\n";
+		assertEquals(expected, csv.toString());
+	}
+
+	@Test
+	public void testColumnar() throws IOException {
+		HistoryExport export = new HistoryExport(directory);
+		export.setFields("WindGust", "Humidity");
+		export.setTimeRange(dayOne + 48 * HOUR, Long.MAX_VALUE);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		assertEquals(48, export.writeColumnar(bytes));
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		byte[] magic = new byte[4];
+		in.readFully(magic);
+		assertEquals("WMRC", new String(magic, "US-ASCII"));
+		assertEquals(2, in.readInt());
+		assertEquals(5, in.readInt());
+		String[] names = new String[5];
+		for (int i = 0; i < 5; i++) {
+			names[i] = in.readUTF();
+			in.readByte();
+		}
+		assertEquals("Humidity", names[3]);
+		assertEquals("WindGust", names[4]);
+
+		int rows = in.readInt();
+		assertEquals(48, rows);
+		assertEquals(dayOne + 48 * HOUR, in.readLong());
+		in.skipBytes((rows - 1) * 8);
+		// The station's sensor IDs
+		assertEquals(0x42, in.readByte());
+		assertEquals(0x48, in.readByte());
+		in.skipBytes(rows - 2 + rows);
+		// Humidity column, then the gusts
+		assertEquals(40f, in.readFloat(), 0);
+		assertEquals(Float.NaN, in.readFloat(), 0);
+		in.skipBytes((rows - 2) * 4);
+		assertEquals(Float.NaN, in.readFloat(), 0);
+		assertEquals(48f, in.readFloat(), 0);
+		in.skipBytes((rows - 2) * 4);
+		assertEquals(0, in.readInt());
+	}
+
+	@Test
+	public void testDecimalCommaLocale() throws IOException {
+		Path commaDirectory = Files.createTempDirectory("testHistoryExport");
+		HistoryStore store = new HistoryStore(commaDirectory);
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			// Decoded as 20,8 degrees
+			String reading = new WMR88InterfaceThread()
+					.analyseSensorDataFrame(new WMRBuffer(new byte[] { 0x10, 0x42, (byte) 0x80, (byte) 0xD0, 0x00, 0x1C, 0x14, 0x00, 0x00, 0x20, (byte) 0xF2, 0x01 })).toString();
+			store.record(dayOne, reading);
+		} finally {
+			Locale.setDefault(locale);
+		}
+		store.close();
+
+		HistoryExport export = new HistoryExport(commaDirectory);
+		export.setFields("Temperature");
+		StringWriter csv = new StringWriter();
+		assertEquals(1, export.writeCsv(csv));
+		assertEquals("Timestamp,Type,Channel,Temperature\n" + dayOne + ",Thermohygrometer,0,20.8\n", csv.toString());
+	}
+
+	@Test
+	public void testFlushBeforeFirstReading() throws IOException {
+		HistoryStore store = new HistoryStore(Files.createTempDirectory("testHistoryExport"));
+		store.flush();
+		store.close();
+	}
+}
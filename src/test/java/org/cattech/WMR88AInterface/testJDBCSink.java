@@ -0,0 +1,195 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.cattech.WMR88Interface.JDBCSink;
+import org.cattech.WMR88Interface.WMR88InterfaceThread;
+import org.cattech.WMR88Interface.WMRBuffer;
+import org.h2.api.Trigger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class testJDBCSink {
+	static final String DB_URL = "jdbc:h2:mem:testJDBCSink;DB_CLOSE_DELAY=-1";
+	static final String UV = "{\"Type\":\"UV\",\"UV_Index\":3,\"Battery\":\"OK\"}";
+
+	/** Fails inserts until it has failed as many as it was told to */
+	public static class FailingTrigger implements Trigger {
+		static final AtomicInteger failures = new AtomicInteger();
+
+		@Override
+		public void fire(Connection connection, Object[] oldRow, Object[] newRow) throws SQLException {
+			if (failures.getAndDecrement() > 0) {
+				throw new SQLException("Disk full");
+			}
+		}
+	}
+
+	@BeforeClass
+	public static void setLogging() {
+		Configurator.setRootLevel(Level.DEBUG);
+	}
+
+	@Test
+	public void testReadingsStoredPerSensorType() throws IOException, SQLException {
+		JDBCSink sink = new JDBCSink(DB_URL, 100, 60000);
+		sink.start();
+
+		WMR88InterfaceThread it = new WMR88InterfaceThread();
+		it.setCallback(sink);
+		for (int i = 0; i < 3; i++) {
+			it.analyseSensorDataFrame(new WMRBuffer(new byte[] { 0x10, 0x42, (byte) 0x80, (byte) 0xD0, 0x00, 0x1C, 0x14, 0x00, 0x00, 0x20, (byte) 0xF2, 0x01 }));
+		}
+		it.analyseSensorDataFrame(new WMRBuffer(new byte[] { 0x00, 0x48, 0x0A, 0x0C, 0x25, 0x00, 0x00, 0x00, 0x20, (byte) 0xA3, 0x00 }));
+		it.analyseSensorDataFrame(new WMRBuffer(new byte[] { 0, 70, -38, 19, -38, 3, 16, 2 }));
+		// Bad checksum, never stored
+		it.analyseSensorDataFrame(new WMRBuffer(new byte[] { 0, 70, -38, 19, -38, 3, 16, 3 }));
+
+		// Well under the batch size and commit interval, close still has to write them
+		sink.close();
+		assertEquals(5, sink.getRowsWritten());
+
+		try (Connection connection = DriverManager.getConnection(DB_URL); Statement statement = connection.createStatement()) {
+			assertEquals(3, count(statement, "wmr88_thermohygrometer"));
+			assertEquals(1, count(statement, "wmr88_anemometer"));
+			assertEquals(1, count(statement, "wmr88_barometer"));
+			assertEquals(0, count(statement, "wmr88_rainfall"));
+
+			try (ResultSet rs = statement.executeQuery("SELECT temperature, humidity, heat_index FROM wmr88_thermohygrometer")) {
+				rs.next();
+				assertEquals(20.8, rs.getDouble(1), 0.001);
+				assertEquals(28, rs.getInt(2));
+				rs.getDouble(3);
+				assertEquals(true, rs.wasNull());
+			}
+			try (ResultSet rs = statement.executeQuery("SELECT wind_gust, wind_direction, wind_chill FROM wmr88_anemometer")) {
+				rs.next();
+				assertEquals(3.7, rs.getDouble(1), 0.001);
+				assertEquals("SW", rs.getString(2));
+				rs.getDouble(3);
+				assertEquals(true, rs.wasNull());
+			}
+		}
+	}
+
+	@Test
+	public void testUnreadableValuesSkipped() throws SQLException {
+		String url = "jdbc:h2:mem:testJDBCSinkUnreadable;DB_CLOSE_DELAY=-1";
+		JDBCSink sink = new JDBCSink(url, 100, 60000);
+		sink.start();
+
+		// As formatted in a locale with a decimal comma
+		sink.receiveData("{\"Type\":\"Thermohygrometer\",\"SensorNumber\":1,\"Temperature\":\"20,8\",\"Humidity\":28}");
+		sink.receiveData("{\"Type\":\"Thermohygrometer\",\"SensorNumber\":2,\"Temperature\":\"warm\",\"Humidity\":\"damp\"}");
+		sink.receiveData("{\"Type\":\"Thermohygrometer\",");
+		sink.receiveData("{\"Type\":\"Thermohygrometer\",\"SensorNumber\":3,\"Temperature\":\"-1.5\",\"Humidity\":30}");
+		sink.close();
+		assertEquals(3, sink.getRowsWritten());
+
+		try (Connection connection = DriverManager.getConnection(url); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("SELECT temperature, humidity FROM wmr88_thermohygrometer ORDER BY sensor")) {
+			rs.next();
+			assertEquals(20.8, rs.getDouble(1), 0.001);
+			rs.next();
+			rs.getDouble(1);
+			assertTrue(rs.wasNull());
+			rs.getInt(2);
+			assertTrue(rs.wasNull());
+			rs.next();
+			assertEquals(-1.5, rs.getDouble(1), 0.001);
+		}
+	}
+
+	@Test
+	public void testSharedByManyThreads() throws SQLException, InterruptedException {
+		String url = "jdbc:h2:mem:testJDBCSinkShared;DB_CLOSE_DELAY=-1";
+		JDBCSink sink = new JDBCSink(url, 100, 60000);
+		sink.start();
+
+		List<Thread> producers = new ArrayList<>();
+		for (int p = 0; p < 4; p++) {
+			final int sensor = p;
+			Thread producer = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					sink.receiveData("{\"Type\":\"UV\",\"UV_Index\":" + sensor + ",\"Battery\":\"OK\"}");
+				}
+			});
+			producers.add(producer);
+			producer.start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		sink.close();
+
+		assertEquals(4000, sink.getRowsWritten());
+		try (Connection connection = DriverManager.getConnection(url); Statement statement = connection.createStatement()) {
+			assertEquals(4000, count(statement, "wmr88_uv"));
+		}
+	}
+
+	@Test
+	public void testFailedCommitRetried() throws SQLException {
+		String url = "jdbc:h2:mem:testJDBCSinkRetried;DB_CLOSE_DELAY=-1";
+		JDBCSink sink = new JDBCSink(url, 100, 50);
+		sink.start();
+		failInserts(url, 1);
+
+		for (int i = 0; i < 10; i++) {
+			sink.receiveData(UV);
+		}
+		sink.close();
+
+		assertEquals(10, sink.getRowsWritten());
+		assertEquals(0, sink.getDroppedRows());
+		try (Connection connection = DriverManager.getConnection(url); Statement statement = connection.createStatement()) {
+			assertEquals(10, count(statement, "wmr88_uv"));
+		}
+	}
+
+	@Test
+	public void testFailingBatchDroppedAndCounted() throws SQLException {
+		String url = "jdbc:h2:mem:testJDBCSinkDropped;DB_CLOSE_DELAY=-1";
+		JDBCSink sink = new JDBCSink(url, 100, 50);
+		sink.start();
+		failInserts(url, Integer.MAX_VALUE);
+
+		for (int i = 0; i < 10; i++) {
+			sink.receiveData(UV);
+		}
+		sink.close();
+
+		assertEquals(0, sink.getRowsWritten());
+		assertEquals(10, sink.getDroppedRows());
+		try (Connection connection = DriverManager.getConnection(url); Statement statement = connection.createStatement()) {
+			assertEquals(0, count(statement, "wmr88_uv"));
+		}
+	}
+
+	private void failInserts(String url, int failures) throws SQLException {
+		FailingTrigger.failures.set(failures);
+		try (Connection connection = DriverManager.getConnection(url); Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TRIGGER fail_uv BEFORE INSERT ON wmr88_uv FOR EACH ROW CALL '" + FailingTrigger.class.getName() + "'");
+		}
+	}
+
+	private int count(Statement statement, String table) throws SQLException {
+		try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+}
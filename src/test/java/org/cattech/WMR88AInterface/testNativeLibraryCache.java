@@ -0,0 +1,72 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+
+import org.cattech.WMR88Interface.NativeLibraryCache;
+import org.junit.Test;
+
+public class testNativeLibraryCache {
+	private static final String LIBRARY = "native/linux/libhidapi-jni-64.so";
+
+	@Test
+	public void testLibrariesForPlatform() {
+		assertEquals(Arrays.asList("/native/linux/libhidapi-jni-64.so", "/native/linux/libhidapi-jni-32.so"), NativeLibraryCache.librariesForPlatform("Linux", "amd64"));
+		assertEquals(Arrays.asList("/native/linux/libhidapi-jni-32.so", "/native/linux/libhidapi-jni-64.so"), NativeLibraryCache.librariesForPlatform("Linux", "arm"));
+		assertEquals(Arrays.asList("/native/mac/libhidapi-jni-64.jnilib", "/native/mac/libhidapi-jni-32.jnilib"), NativeLibraryCache.librariesForPlatform("Mac OS X", "aarch64"));
+		assertEquals(Arrays.asList("/native/win/hidapi-jni-32.dll", "/native/win/hidapi-jni-64.dll"), NativeLibraryCache.librariesForPlatform("Windows 10", "x86"));
+	}
+
+	@Test
+	public void testCachedCopyNamedByChecksumAndReused() throws IOException {
+		Path directory = Files.createTempDirectory("testNativeLibraryCache");
+		Path cache = directory.resolve("cache");
+		byte[] library = "not really a shared library".getBytes("US-ASCII");
+		URL resource = libraryInJar(directory.resolve("hidapi-1.jar"), library);
+
+		Path cached = NativeLibraryCache.cachedCopy(cache, resource);
+		CRC32 crc = new CRC32();
+		crc.update(library);
+		assertEquals(String.format("%08x-%d-libhidapi-jni-64.so", crc.getValue(), library.length), cached.getFileName().toString());
+		assertArrayEquals(library, Files.readAllBytes(cached));
+
+		// Found again by name, without extracting it again
+		FileTime extracted = FileTime.fromMillis(1_000_000_000_000L);
+		Files.setLastModifiedTime(cached, extracted);
+		assertEquals(cached, NativeLibraryCache.cachedCopy(cache, resource));
+		assertEquals(extracted, Files.getLastModifiedTime(cached));
+
+		// Outside a jar the checksum is worked out from the library itself
+		Path loose = directory.resolve("libhidapi-jni-64.so");
+		Files.write(loose, library);
+		assertEquals(cached, NativeLibraryCache.cachedCopy(cache, loose.toUri().toURL()));
+
+		// A different library, from a newer jar, is cached alongside
+		byte[] newer = "a newer not really a shared library".getBytes("US-ASCII");
+		Path newerCopy = NativeLibraryCache.cachedCopy(cache, libraryInJar(directory.resolve("hidapi-2.jar"), newer));
+		assertFalse(newerCopy.equals(cached));
+		assertArrayEquals(newer, Files.readAllBytes(newerCopy));
+		assertArrayEquals(library, Files.readAllBytes(cached));
+	}
+
+	private URL libraryInJar(Path jar, byte[] library) throws IOException {
+		try (OutputStream file = Files.newOutputStream(jar); JarOutputStream out = new JarOutputStream(file)) {
+			out.putNextEntry(new JarEntry(LIBRARY));
+			out.write(library);
+			out.closeEntry();
+		}
+		return new URL("jar:" + jar.toUri() + "!/" + LIBRARY);
+	}
+}
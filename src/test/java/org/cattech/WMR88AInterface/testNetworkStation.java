@@ -0,0 +1,134 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.cattech.WMR88Interface.NetworkStationBridge;
+import org.cattech.WMR88Interface.NetworkStationServer;
+import org.cattech.WMR88Interface.StationSimulator;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class testNetworkStation {
+	private static final int STATIONS = 20;
+	private static final int FRAMES = 50;
+	private static final int DECODERS = 2;
+
+	/** A simulated station that counts the commands it is sent */
+	private static class CommandCountingSimulator extends StationSimulator {
+		final AtomicInteger commands = new AtomicInteger();
+
+		CommandCountingSimulator(long seed) {
+			super(1, seed);
+		}
+
+		@Override
+		public void write(byte[] data) {
+			commands.incrementAndGet();
+		}
+	}
+
+	@BeforeClass
+	public static void setLogging() {
+		Configurator.setRootLevel(Level.WARN);
+	}
+
+	@Test
+	public void testStationsMultiplexedOverLoopback() throws IOException, InterruptedException {
+		Map<String, List<JSONObject>> readings = new ConcurrentHashMap<>();
+		Set<Thread> callbackThreads = ConcurrentHashMap.newKeySet();
+
+		NetworkStationServer server = new NetworkStationServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), station -> {
+			List<JSONObject> stationReadings = new CopyOnWriteArrayList<>();
+			readings.put(station.getRemoteAddress().toString(), stationReadings);
+			station.addCallback(json -> {
+				stationReadings.add(new JSONObject(json));
+				callbackThreads.add(Thread.currentThread());
+			});
+		});
+		server.setDecoderThreads(DECODERS);
+		server.start();
+
+		List<CommandCountingSimulator> simulators = new ArrayList<>();
+		List<NetworkStationBridge> bridges = new ArrayList<>();
+		for (int i = 0; i < STATIONS; i++) {
+			CommandCountingSimulator simulator = new CommandCountingSimulator(i);
+			simulator.setFramesPerSecond(0);
+			simulator.setFrameLimit(FRAMES);
+			simulators.add(simulator);
+			NetworkStationBridge bridge = new NetworkStationBridge(simulator, new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+			bridges.add(bridge);
+			new Thread(bridge, "WMR88 Bridge " + i).start();
+		}
+
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (System.currentTimeMillis() < deadline && readingCount(readings) < STATIONS * FRAMES) {
+			Thread.sleep(20);
+		}
+		assertEquals(STATIONS, server.getStationCount());
+		// The selector and the shared decoders, however many stations there are
+		List<Thread> serverThreads = server.getThreads();
+		assertEquals(DECODERS + 1, serverThreads.size());
+		// Each station's callback on its own thread, not on the shared decoders
+		assertEquals(STATIONS, callbackThreads.size());
+		for (Thread callbackThread : callbackThreads) {
+			assertTrue(callbackThread.getName(), callbackThread.getName().startsWith("WMR88 Sink"));
+		}
+
+		// A station going away is an ordinary disconnect
+		bridges.get(0).stop();
+		deadline = System.currentTimeMillis() + 10_000;
+		while (System.currentTimeMillis() < deadline && server.getStationCount() == STATIONS) {
+			Thread.sleep(20);
+		}
+		assertEquals(STATIONS - 1, server.getStationCount());
+
+		server.stop();
+		server.join();
+		for (Thread serverThread : serverThreads) {
+			assertFalse(serverThread.getName(), serverThread.isAlive());
+		}
+		for (Thread callbackThread : callbackThreads) {
+			assertFalse(callbackThread.getName(), callbackThread.isAlive());
+		}
+		for (NetworkStationBridge bridge : bridges) {
+			bridge.stop();
+		}
+
+		assertEquals(STATIONS, readings.size());
+		for (List<JSONObject> stationReadings : readings.values()) {
+			assertEquals(FRAMES, stationReadings.size());
+			for (JSONObject reading : stationReadings) {
+				assertFalse(reading.toString(), reading.has("Error"));
+			}
+		}
+		// Each station was asked for data when it connected
+		for (CommandCountingSimulator simulator : simulators) {
+			assertTrue(simulator.commands.get() > 0);
+		}
+		assertEquals(0, server.getStationCount());
+	}
+
+	private int readingCount(Map<String, List<JSONObject>> readings) {
+		int count = 0;
+		for (List<JSONObject> stationReadings : readings.values()) {
+			count += stationReadings.size();
+		}
+		return count;
+	}
+}
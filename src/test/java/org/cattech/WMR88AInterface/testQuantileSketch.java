@@ -0,0 +1,59 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.cattech.WMR88Interface.QuantileSketch;
+import org.junit.Test;
+
+public class testQuantileSketch {
+
+	@Test
+	public void testQuantilesWithinRankError() {
+		QuantileSketch sketch = new QuantileSketch();
+		Random random = new Random(1);
+		int n = 200_000;
+		for (int i = 0; i < n; i++) {
+			// Uniform from 0 to 100, so the value is the percentile
+			sketch.add(random.nextDouble() * 100);
+		}
+
+		assertEquals(n, sketch.getCount());
+		assertEquals(95, sketch.getQuantile(0.95), 1.5);
+		assertEquals(99, sketch.getQuantile(0.99), 1.5);
+		assertEquals(50, sketch.getQuantile(0.5), 1.5);
+		assertTrue("fixed size, held " + sketch.getRetained(), sketch.getRetained() < 1000);
+	}
+
+	@Test
+	public void testMergeAndSerialize() throws IOException {
+		QuantileSketch whole = new QuantileSketch();
+		QuantileSketch[] days = new QuantileSketch[30];
+		for (int day = 0; day < days.length; day++) {
+			days[day] = new QuantileSketch();
+			for (int i = 0; i < 1000; i++) {
+				double value = (day * 1000 + i) / 300.0;
+				days[day].add(value);
+				whole.add(value);
+			}
+		}
+
+		QuantileSketch month = new QuantileSketch();
+		for (QuantileSketch day : days) {
+			month.merge(QuantileSketch.fromByteArray(day.toByteArray()));
+		}
+
+		assertEquals(whole.getCount(), month.getCount());
+		assertEquals(whole.getMax(), month.getMax(), 0);
+		assertEquals(whole.getMean(), month.getMean(), 1e-9);
+		// 30000 values spread over 0 to 100
+		assertEquals(95, month.getQuantile(0.95), 1.5);
+		assertEquals(99, month.getQuantile(0.99), 1.5);
+
+		QuantileSketch copy = QuantileSketch.fromByteArray(month.toByteArray());
+		assertEquals(month.getQuantile(0.99), copy.getQuantile(0.99), 0);
+	}
+}
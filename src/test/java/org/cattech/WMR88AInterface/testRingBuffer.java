@@ -0,0 +1,173 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cattech.WMR88Interface.RingBuffer;
+import org.cattech.WMR88Interface.WMR88InterfaceThread;
+import org.cattech.WMR88Interface.WMR88ReportSource;
+import org.junit.Test;
+
+public class testRingBuffer {
+
+	/** A station that never sends anything */
+	private static class SilentStation implements WMR88ReportSource {
+		@Override
+		public void open() {
+		}
+
+		@Override
+		public int readTimeout(byte[] buffer, int timeoutMs) {
+			try {
+				Thread.sleep(Math.min(timeoutMs, 100));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return 0;
+		}
+
+		@Override
+		public void write(byte[] data) {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Test
+	public void testCapacityRoundsUpToPowerOfTwo() {
+		assertEquals(1, new RingBuffer<String>(1).capacity());
+		assertEquals(8, new RingBuffer<String>(5).capacity());
+		assertEquals(64, new RingBuffer<String>(64).capacity());
+	}
+
+	@Test
+	public void testOfferFailsWhenFull() {
+		RingBuffer<Integer> ring = new RingBuffer<>(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue("offer " + i, ring.offer(i));
+		}
+		assertFalse(ring.offer(4));
+		assertEquals(4, ring.size());
+	}
+
+	@Test
+	public void testPollTakesOldestFirst() {
+		RingBuffer<Integer> ring = new RingBuffer<>(2);
+		assertNull(ring.poll());
+		ring.offer(0);
+		ring.offer(1);
+		assertEquals(Integer.valueOf(0), ring.poll());
+		assertTrue(ring.offer(2));
+		assertEquals(Integer.valueOf(1), ring.poll());
+		assertEquals(Integer.valueOf(2), ring.poll());
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void testDrainInBatchesAcrossWrap() {
+		RingBuffer<Integer> ring = new RingBuffer<>(4);
+		List<Integer> batch = new ArrayList<>();
+
+		ring.offerAll(Arrays.asList(0, 1, 2));
+		assertEquals(2, ring.drainTo(batch, 2));
+		assertEquals(Arrays.asList(0, 1), batch);
+
+		// Only 3 of these fit, the tail end wraps around the slot array
+		assertEquals(3, ring.offerAll(Arrays.asList(3, 4, 5, 6)));
+
+		batch.clear();
+		assertEquals(4, ring.drainTo(batch, 10));
+		assertEquals(Arrays.asList(2, 3, 4, 5), batch);
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void testProducerConsumerThreads() throws InterruptedException {
+		final RingBuffer<Integer> ring = new RingBuffer<>(16);
+		final int count = 10000;
+
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < count; i++) {
+				while (!ring.offer(i)) {
+					Thread.yield();
+				}
+			}
+		});
+		producer.start();
+
+		List<Integer> batch = new ArrayList<>();
+		int expected = 0;
+		while (expected < count) {
+			if (ring.drainTo(batch, 8) == 0) {
+				Thread.yield();
+			}
+			for (int value : batch) {
+				assertEquals(expected++, value);
+			}
+			batch.clear();
+		}
+		producer.join();
+	}
+
+	@Test(timeout = 10_000)
+	public void testAwaitWokenByOffer() throws InterruptedException {
+		final RingBuffer<Integer> ring = new RingBuffer<>(4);
+		final long[] waitedNanos = new long[1];
+		Thread consumer = new Thread(() -> {
+			long start = System.nanoTime();
+			while (ring.isEmpty()) {
+				ring.await(TimeUnit.SECONDS.toNanos(30));
+			}
+			waitedNanos[0] = System.nanoTime() - start;
+		});
+		consumer.start();
+
+		Thread.sleep(100);
+		ring.offer(1);
+		consumer.join();
+		assertTrue("Waited " + waitedNanos[0] + "ns", waitedNanos[0] < TimeUnit.SECONDS.toNanos(5));
+	}
+
+	@Test(timeout = 30_000)
+	public void testIdlePipelineSleeps() throws InterruptedException {
+		WMR88InterfaceThread wThread = new WMR88InterfaceThread();
+		wThread.setReportSource(new SilentStation());
+		wThread.addCallback(json -> {
+		});
+		wThread.addFrameCallback(frame -> frame.release());
+		Thread thread = new Thread(wThread);
+		thread.start();
+		Thread.sleep(500);
+
+		// The decoder, the sink and the frame sink
+		List<Thread> stages = wThread.getPipelineThreads();
+		assertEquals(3, stages.size());
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long before = 0;
+		for (Thread stage : stages) {
+			before += threads.getThreadCpuTime(stage.getId());
+		}
+		Thread.sleep(2000);
+		long used = 0;
+		for (Thread stage : stages) {
+			used += threads.getThreadCpuTime(stage.getId());
+		}
+		used -= before;
+		wThread.stop();
+		thread.join();
+
+		// Polling every millisecond costs tens of milliseconds over two seconds
+		assertTrue("Idle stages used " + used / 1000 + "us of CPU", used < TimeUnit.MILLISECONDS.toNanos(10));
+	}
+}
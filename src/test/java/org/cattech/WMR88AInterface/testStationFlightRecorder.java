@@ -0,0 +1,103 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.cattech.WMR88Interface.StationFlightRecorder;
+import org.cattech.WMR88Interface.StationSimulator;
+import org.cattech.WMR88Interface.WMR88InterfaceThread;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class testStationFlightRecorder {
+	private static final String EVENT_PREFIX = "org.cattech.WMR88Interface.";
+
+	/**
+	 * A simulated station whose USB connection fails after a number of reads,
+	 * having gone quiet long enough for the decoder to catch up
+	 */
+	private static class FailingSimulator extends StationSimulator {
+		private int readsLeft;
+
+		FailingSimulator(int reads) {
+			super(2, 5);
+			this.readsLeft = reads;
+		}
+
+		@Override
+		public int readTimeout(byte[] buffer, int timeoutMs) {
+			if (readsLeft-- <= 0) {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new IllegalStateException("Station unplugged");
+			}
+			return super.readTimeout(buffer, timeoutMs);
+		}
+	}
+
+	@BeforeClass
+	public static void setLogging() {
+		Configurator.setRootLevel(Level.OFF);
+	}
+
+	@Test(timeout = 30_000)
+	public void testDumpedOnFailureWithStationEvents() throws IOException, InterruptedException {
+		Path directory = Files.createTempDirectory("testStationFlightRecorder");
+		StationFlightRecorder flightRecorder = new StationFlightRecorder(directory);
+		flightRecorder.start();
+
+		FailingSimulator simulator = new FailingSimulator(500);
+		simulator.setFramesPerSecond(0);
+		// Some frames with bad checksums
+		simulator.setFaultRate(StationSimulator.Fault.BIT_FLIP, 0.1);
+		WMR88InterfaceThread wThread = new WMR88InterfaceThread();
+		wThread.setReportSource(simulator);
+		wThread.setFlightRecorder(flightRecorder);
+		wThread.addCallback(json -> {
+		});
+		Thread thread = new Thread(wThread);
+		thread.start();
+		thread.join();
+		flightRecorder.close();
+
+		Path dump = null;
+		try (DirectoryStream<Path> dumps = Files.newDirectoryStream(directory, "wmr88-*.jfr")) {
+			for (Path file : dumps) {
+				dump = file;
+			}
+		}
+		assertTrue("No flight recording was dumped", dump != null);
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+		Set<String> types = new HashSet<>();
+		int reads = 0;
+		for (RecordedEvent event : events) {
+			String type = event.getEventType().getName();
+			types.add(type);
+			if (type.equals(EVENT_PREFIX + "HidRead")) {
+				reads++;
+			}
+		}
+		assertEquals(500, reads);
+		assertTrue(types.toString(), types.contains(EVENT_PREFIX + "FrameAssembled"));
+		assertTrue(types.toString(), types.contains(EVENT_PREFIX + "ChecksumFailure"));
+		assertTrue(types.toString(), types.contains(EVENT_PREFIX + "Decode"));
+		assertTrue(types.toString(), types.contains(EVENT_PREFIX + "Callback"));
+	}
+}
@@ -0,0 +1,315 @@
+package org.cattech.WMR88AInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.cattech.WMR88Interface.DeviceParameters;
+import org.cattech.WMR88Interface.StationSimulator;
+import org.cattech.WMR88Interface.StationSimulator.Fault;
+import org.cattech.WMR88Interface.Subscription;
+import org.cattech.WMR88Interface.WMR88Callback;
+import org.cattech.WMR88Interface.WMR88FrameCallback;
+import org.cattech.WMR88Interface.WMR88InterfaceThread;
+import org.cattech.WMR88Interface.WMRBuffer;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class testStationSimulator {
+
+	@BeforeClass
+	public static void setLogging() {
+		Configurator.setRootLevel(Level.WARN);
+	}
+
+	@Test
+	public void testAllSensorTypesDecodeCleanly() throws InterruptedException {
+		StationSimulator simulator = new StationSimulator(3, 42);
+		simulator.setFramesPerSecond(0);
+		simulator.setFrameLimit(300);
+
+		List<JSONObject> readings = runSimulation(simulator, false);
+
+		assertEquals(300, readings.size());
+		Set<String> types = new HashSet<>();
+		for (JSONObject reading : readings) {
+			assertFalse(reading.toString(), reading.has("Error"));
+			types.add(reading.getString("Type"));
+		}
+		assertEquals(new HashSet<>(Arrays.asList("Anemometer", "Barometer", "Clock", "Rainfall", "Thermohygrometer", "UV")), types);
+	}
+
+	@Test
+	public void testFaultsAreReportedNotFatal() throws InterruptedException {
+		StationSimulator simulator = new StationSimulator(2, 7);
+		simulator.setFramesPerSecond(0);
+		simulator.setFrameLimit(500);
+		for (Fault fault : Fault.values()) {
+			simulator.setFaultRate(fault, 0.05);
+		}
+
+		List<JSONObject> readings = runSimulation(simulator, true);
+
+		int valid = 0;
+		int invalid = 0;
+		for (JSONObject reading : readings) {
+			if (reading.has("Error")) {
+				invalid++;
+			} else if (reading.length() > 0) {
+				valid++;
+			}
+		}
+		for (Fault fault : Fault.values()) {
+			assertTrue(fault + " injected", simulator.getFaultCount(fault) > 0);
+		}
+		// Roughly a quarter of the frames are hit by a fault
+		assertTrue("most frames survive", valid > 250);
+		assertTrue("faults are reported", invalid > 0);
+	}
+
+	@Test
+	public void testSubscriptionsSelectReadingsAndFields() throws InterruptedException {
+		StationSimulator simulator = new StationSimulator(3, 11);
+		simulator.setFramesPerSecond(0);
+		simulator.setFrameLimit(600);
+
+		final List<JSONObject> temperatures = Collections.synchronizedList(new ArrayList<JSONObject>());
+		final List<JSONObject> wind = Collections.synchronizedList(new ArrayList<JSONObject>());
+		WMR88InterfaceThread wThread = createInterface(simulator, false);
+		Subscription temperatureSubscription = new Subscription();
+		temperatureSubscription.setSensors(DeviceParameters.Thermohygrometer);
+		temperatureSubscription.setChannels(2);
+		temperatureSubscription.setFields("Temperature");
+		wThread.addCallback(jsonData -> temperatures.add(new JSONObject(jsonData)), temperatureSubscription);
+		wThread.addCallback(jsonData -> wind.add(new JSONObject(jsonData)), EnumSet.of(DeviceParameters.Anemometer));
+
+		runSimulation(simulator, wThread);
+
+		assertFalse(temperatures.isEmpty());
+		for (JSONObject reading : temperatures) {
+			assertEquals("Thermohygrometer", reading.getString("Type"));
+			assertEquals(2, reading.getInt("SensorNumber"));
+			assertEquals(new HashSet<>(Arrays.asList("Type", "SensorNumber", "Temperature")), reading.keySet());
+		}
+		assertFalse(wind.isEmpty());
+		for (JSONObject reading : wind) {
+			assertEquals("Anemometer", reading.getString("Type"));
+			assertTrue(reading.has("WindGust") && reading.has("WindVectorDescription"));
+		}
+	}
+
+	@Test
+	public void testFrameCallbacksWithoutDecoding() throws InterruptedException {
+		StationSimulator simulator = new StationSimulator(3, 5);
+		// Slow enough for the callbacks to keep up, so no frames are dropped
+		simulator.setFramesPerSecond(2000);
+		simulator.setFrameLimit(1000);
+
+		final AtomicInteger valid = new AtomicInteger();
+		final AtomicInteger uvFrames = new AtomicInteger();
+		WMR88InterfaceThread wThread = createInterface(simulator, false);
+		// Fewer views than frames, so they have to be released and reused
+		wThread.setFramePoolSize(64);
+		wThread.addFrameCallback(frame -> {
+			if (frame.isChecksumValid()) {
+				valid.incrementAndGet();
+			}
+			frame.release();
+		});
+		Subscription uv = new Subscription();
+		uv.setSensors(DeviceParameters.UV);
+		wThread.addFrameCallback(frame -> {
+			assertTrue(frame.getUVIndex() >= 0);
+			uvFrames.incrementAndGet();
+			frame.release();
+		}, uv);
+
+		runSimulation(simulator, wThread);
+
+		assertEquals(1000, valid.get());
+		assertTrue(uvFrames.get() > 0 && uvFrames.get() < 1000);
+	}
+
+	@Test(timeout = 30_000)
+	public void testRemovedCallbacksStopTheirThreads() throws InterruptedException {
+		StationSimulator simulator = new StationSimulator(1, 3);
+		simulator.setFramesPerSecond(1000);
+		WMR88InterfaceThread wThread = createInterface(simulator, false);
+		final AtomicInteger readings = new AtomicInteger();
+		WMR88Callback removed = jsonData -> {
+		};
+		wThread.addCallback(removed);
+		wThread.addCallback(jsonData -> readings.incrementAndGet());
+
+		Thread thread = new Thread(wThread, "WMR88 Interface");
+		thread.start();
+		List<Thread> sinkThreads = new ArrayList<>();
+		while (sinkThreads.size() < 2) {
+			Thread.sleep(10);
+			sinkThreads.clear();
+			for (Thread candidate : wThread.getPipelineThreads()) {
+				if (candidate.getName().startsWith("WMR88 Sink ")) {
+					sinkThreads.add(candidate);
+				}
+			}
+		}
+		Thread removedThread = sinkThreads.get(0).getName().equals("WMR88 Sink 0") ? sinkThreads.get(0) : sinkThreads.get(1);
+		Thread replacedThread = sinkThreads.get(0) == removedThread ? sinkThreads.get(1) : sinkThreads.get(0);
+
+		wThread.removeCallback(removed);
+		assertFalse("removed callback's thread still running", removedThread.isAlive());
+		while (readings.get() == 0) {
+			Thread.sleep(10);
+		}
+
+		// Replacing the callbacks stops the remaining one
+		wThread.setCallback(null);
+		assertFalse("replaced callback's thread still running", replacedThread.isAlive());
+
+		wThread.stop();
+		thread.join();
+	}
+
+	@Test(timeout = 30_000)
+	public void testCallbacksAddedWhileRunningGetTheirOwnThreads() throws InterruptedException {
+		StationSimulator simulator = new StationSimulator(1, 5);
+		simulator.setFramesPerSecond(1000);
+		WMR88InterfaceThread wThread = createInterface(simulator, false);
+		final AtomicInteger readings = new AtomicInteger();
+		wThread.addCallback(jsonData -> readings.incrementAndGet());
+
+		Thread thread = new Thread(wThread, "WMR88 Interface");
+		thread.start();
+		while (readings.get() == 0) {
+			Thread.sleep(10);
+		}
+		final Set<String> callbackThreads = Collections.synchronizedSet(new HashSet<String>());
+		final Set<String> frameCallbackThreads = Collections.synchronizedSet(new HashSet<String>());
+		wThread.addCallback(jsonData -> callbackThreads.add(Thread.currentThread().getName()));
+		wThread.addFrameCallback(frame -> {
+			frameCallbackThreads.add(Thread.currentThread().getName());
+			frame.release();
+		});
+		while (callbackThreads.isEmpty() || frameCallbackThreads.isEmpty()) {
+			Thread.sleep(10);
+		}
+
+		// The decoder isn't held up by them
+		assertEquals(Collections.singleton("WMR88 Sink 1"), callbackThreads);
+		assertEquals(Collections.singleton("WMR88 Frame Sink 0"), frameCallbackThreads);
+		// Nor is there a second decoder
+		try {
+			wThread.analyseSensorDataFrame(new WMRBuffer(new byte[] { 0x00, 0x48, 0x0A, 0x0C, 0x25, 0x00, 0x00, 0x00, 0x20, (byte) 0xA3, 0x00 }));
+			fail("Analysed a frame while running");
+		} catch (IllegalStateException | IOException e) {
+			assertTrue(e instanceof IllegalStateException);
+		}
+
+		wThread.stop();
+		thread.join();
+	}
+
+	@Test(timeout = 30_000)
+	public void testRemovedFrameCallbackReleasesQueuedFrames() throws InterruptedException {
+		StationSimulator simulator = new StationSimulator(1, 3);
+		simulator.setFramesPerSecond(1000);
+		WMR88InterfaceThread wThread = createInterface(simulator, false);
+		// Small enough for the stuck callback's queue to hold every view
+		wThread.setFramePoolSize(8);
+		final CountDownLatch unstick = new CountDownLatch(1);
+		final AtomicInteger stuckFrames = new AtomicInteger();
+		WMR88FrameCallback stuck = frame -> {
+			stuckFrames.incrementAndGet();
+			try {
+				unstick.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			frame.release();
+		};
+		final AtomicInteger frames = new AtomicInteger();
+		wThread.addFrameCallback(stuck);
+		wThread.addFrameCallback(frame -> {
+			frames.incrementAndGet();
+			frame.release();
+		});
+
+		Thread thread = new Thread(wThread, "WMR88 Interface");
+		thread.start();
+		// Wait for the stuck callback to hold on to every view, starving the other
+		while (stuckFrames.get() == 0) {
+			Thread.sleep(10);
+		}
+		int starved = -1;
+		while (starved != frames.get()) {
+			starved = frames.get();
+			Thread.sleep(200);
+		}
+		assertEquals(1, stuckFrames.get());
+
+		new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			unstick.countDown();
+		}).start();
+		wThread.removeFrameCallback(stuck);
+
+		// The views queued for the removed callback are back in the pool
+		while (frames.get() < starved + 100) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, stuckFrames.get());
+
+		wThread.stop();
+		thread.join();
+	}
+
+	private List<JSONObject> runSimulation(StationSimulator simulator, boolean returnInvalidFrames) throws InterruptedException {
+		final List<JSONObject> readings = Collections.synchronizedList(new ArrayList<JSONObject>());
+
+		WMR88InterfaceThread wThread = createInterface(simulator, returnInvalidFrames);
+		wThread.setCallback(jsonData -> readings.add(new JSONObject(jsonData)));
+		runSimulation(simulator, wThread);
+		return readings;
+	}
+
+	private WMR88InterfaceThread createInterface(StationSimulator simulator, boolean returnInvalidFrames) {
+		WMR88InterfaceThread wThread = new WMR88InterfaceThread();
+		wThread.setReportSource(simulator);
+		// Big enough to hold every report, so the decoder falling behind can't drop any
+		wThread.setReportBuffer(1 << 16, 64);
+		wThread.setReturnInvalidFrames(returnInvalidFrames);
+		return wThread;
+	}
+
+	private void runSimulation(StationSimulator simulator, WMR88InterfaceThread wThread) throws InterruptedException {
+		Thread thread = new Thread(wThread, "WMR88 Interface");
+		thread.start();
+		long deadline = System.currentTimeMillis() + 30000;
+		while (!simulator.isExhausted() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		wThread.stop();
+		thread.join();
+
+		assertTrue("simulation finished", simulator.isExhausted());
+	}
+}
@@ -0,0 +1,37 @@
+#!/bin/sh
+
+# Start the command line monitor from an application class data sharing
+# archive, so the JVM maps the already parsed classes of the monitor, log4j,
+# org.json and hidapi instead of loading them from the jars. Uses a static
+# archive, which works from JDK 11 on like the rest of the build.
+#
+# The archive only matches the jars it was built from, so it is built here on
+# first use; "mvn clean" removes it along with the rest of target. The class
+# list comes from a short simulated run, which never opens the USB device, so
+# the classes of the HID path are added to it by name. If the archive can't be
+# built the monitor still starts, just without it.
+cd target
+ARCHIVE=wmr88-cds.jsa
+CLASSLIST=wmr88-classes.lst
+CLASSPATH="lib/*:./*"
+if [ ! -f $ARCHIVE ]; then
+	echo Building class data archive:
+	java -XX:DumpLoadedClassList=$CLASSLIST -cp "$CLASSPATH" org.cattech.WMR88Interface.CommandLineMonitor --simulate --frames 200 > /dev/null
+	cat >> $CLASSLIST <<CLASSES
+org/cattech/WMR88Interface/HIDReportSource
+org/cattech/WMR88Interface/NativeLibraryCache
+com/codeminders/hidapi/ClassPathLibraryLoader
+com/codeminders/hidapi/HIDDevice
+com/codeminders/hidapi/HIDDeviceInfo
+com/codeminders/hidapi/HIDDeviceNotFoundException
+com/codeminders/hidapi/HIDManager
+java/util/zip/CRC32
+CLASSES
+	java -Xshare:dump -XX:SharedClassListFile=$CLASSLIST -XX:SharedArchiveFile=$ARCHIVE -cp "$CLASSPATH" > /dev/null || rm -f $ARCHIVE
+fi
+echo Starting command line monitor:
+if [ -f $ARCHIVE ]; then
+	java -XX:SharedArchiveFile=$ARCHIVE -cp "$CLASSPATH" org.cattech.WMR88Interface.CommandLineMonitor "$@"
+else
+	java -cp "$CLASSPATH" org.cattech.WMR88Interface.CommandLineMonitor "$@"
+fi